@@ -0,0 +1,58 @@
+-- Unique index on entries (id, game_id), required by ON CONFLICT (id, game_id) in upsertEntries.
+-- Run once before deploying a version that upserts entries:
+--
+--     psql -h db -U stackrating -d stackrating -f migrations/001-entries-id-game-id-idx.sql
+--
+-- The index is built CONCURRENTLY, so writes to entries are not blocked while it is built. This
+-- can't be done in a transaction, so don't run the file with --single-transaction.
+
+\set ON_ERROR_STOP on
+
+-- A failed concurrent build leaves an invalid index behind, which IF NOT EXISTS would keep.
+SELECT EXISTS (
+    SELECT 1
+    FROM pg_index
+    WHERE indexrelid = to_regclass('entries_id_game_id_idx')
+      AND NOT indisvalid
+) AS has_invalid_index \gset
+
+\if :has_invalid_index
+    DROP INDEX CONCURRENTLY entries_id_game_id_idx;
+\endif
+
+-- An existing primary key or unique index on the same columns (under any name) is enough.
+SELECT EXISTS (
+    SELECT 1
+    FROM pg_index i
+    WHERE i.indrelid = 'entries'::regclass
+      AND i.indisunique
+      AND i.indisvalid
+      AND i.indpred IS NULL
+      AND i.indexprs IS NULL
+      AND (SELECT array_agg(a.attname::text ORDER BY a.attname)
+           FROM unnest(i.indkey::int2[]) AS k(attnum)
+           JOIN pg_attribute a ON a.attrelid = i.indrelid AND a.attnum = k.attnum)
+          = ARRAY['game_id', 'id']
+) AS has_unique_index \gset
+
+\if :has_unique_index
+    \echo 'entries already has a unique index on (id, game_id). Nothing to do.'
+    \quit
+\endif
+
+-- The build would fail on duplicate rows (and leave an invalid index), so check first.
+SELECT EXISTS (
+    SELECT 1
+    FROM entries
+    GROUP BY id, game_id
+    HAVING COUNT(*) > 1
+) AS has_duplicates \gset
+
+\if :has_duplicates
+    DO $$ BEGIN
+        RAISE EXCEPTION 'entries has duplicate (id, game_id) rows. Remove them and run this file again.';
+    END $$;
+\endif
+
+CREATE UNIQUE INDEX CONCURRENTLY IF NOT EXISTS entries_id_game_id_idx
+ON entries (id, game_id);
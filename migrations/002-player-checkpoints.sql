@@ -0,0 +1,51 @@
+-- Player state checkpoints, used to seed rejudges that don't start from the first game, and the
+-- index on entries (player_id, game_id) that makes it cheap to sum up the entries between a
+-- checkpoint and the first rejudged game. Run once before deploying a version that checkpoints:
+--
+--     psql -h db -U stackrating -d stackrating -f migrations/002-player-checkpoints.sql
+--
+-- The indexes are built CONCURRENTLY, so writes to entries are not blocked while they are built.
+-- This can't be done in a transaction, so don't run the file with --single-transaction.
+
+\set ON_ERROR_STOP on
+
+-- A row (game_id, player_id) holds the state of the player before game game_id, i.e. after all
+-- games with lower ids. Rows are only written for players that played since the previous
+-- checkpoint, so the state of a player before game X is found in the player's latest checkpoint
+-- at or before X, plus the entries between that checkpoint and X.
+CREATE TABLE IF NOT EXISTS player_checkpoints (
+    game_id INT NOT NULL,
+    player_id INT NOT NULL,
+    rating DOUBLE PRECISION NOT NULL,
+    num_games_played INT NOT NULL,
+    PRIMARY KEY (player_id, game_id)
+);
+
+-- A failed concurrent build leaves an invalid index behind, which IF NOT EXISTS would keep.
+SELECT EXISTS (
+    SELECT 1
+    FROM pg_index
+    WHERE indexrelid = to_regclass('player_checkpoints_game_id_idx')
+      AND NOT indisvalid
+) AS has_invalid_checkpoint_index \gset
+
+\if :has_invalid_checkpoint_index
+    DROP INDEX CONCURRENTLY player_checkpoints_game_id_idx;
+\endif
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS player_checkpoints_game_id_idx
+ON player_checkpoints (game_id);
+
+SELECT EXISTS (
+    SELECT 1
+    FROM pg_index
+    WHERE indexrelid = to_regclass('entries_player_id_game_id_idx')
+      AND NOT indisvalid
+) AS has_invalid_entries_index \gset
+
+\if :has_invalid_entries_index
+    DROP INDEX CONCURRENTLY entries_player_id_game_id_idx;
+\endif
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS entries_player_id_game_id_idx
+ON entries (player_id, game_id);
@@ -0,0 +1,43 @@
+package com.stackrating;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/** Rendering of the rating badges, with and without the PNG cache. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BadgeRendererBenchmark {
+
+    // Number of distinct ratings requested
+    private final static int NUM_RATINGS = 1000;
+
+    BadgeRenderer renderer;
+    String[] ratings;
+
+    @Setup
+    public void setup() throws IOException {
+        renderer = new BadgeRenderer(NUM_RATINGS);
+        ratings = new String[NUM_RATINGS];
+        for (int i = 0; i < NUM_RATINGS; i++) {
+            ratings[i] = String.format("%.2f", 1500 + i * 0.37);
+            renderer.getPng(ratings[i]);
+        }
+    }
+
+    @Benchmark
+    public byte[] render() {
+        return renderer.renderPng(ratings[ThreadLocalRandom.current().nextInt(NUM_RATINGS)]);
+    }
+
+    @Benchmark
+    public byte[] cached() {
+        return renderer.getPng(ratings[ThreadLocalRandom.current().nextInt(NUM_RATINGS)]);
+    }
+}
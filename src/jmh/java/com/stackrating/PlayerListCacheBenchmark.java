@@ -0,0 +1,81 @@
+package com.stackrating;
+
+import com.stackrating.bench.SyntheticData;
+import com.stackrating.model.Player;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/** Lookups in a player list snapshot, as done by the /list pages. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlayerListCacheBenchmark {
+
+    private final static int PAGE_SIZE = 50;
+
+    @Param({"10000", "10000000"})
+    int numPlayers;
+
+    Path file;
+    PlayerListSnapshot snapshot;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        // Write a snapshot file (a temp file) directly instead of regenerating it from the database.
+        SyntheticData data = new SyntheticData(42);
+        PlayerListSnapshot.Builder builder = new PlayerListSnapshot.Builder();
+        for (int id = 1; id <= numPlayers; id++) {
+            builder.addRow(id, "user" + id, data.votes(), data.rating());
+        }
+
+        file = Files.createTempFile("playerListCacheBenchmark", ".dat");
+        try (FileChannel channel = FileChannel.open(file, CREATE, TRUNCATE_EXISTING, WRITE)) {
+            builder.writeTo(channel, 1);
+        }
+        snapshot = PlayerListSnapshot.map(file);
+    }
+
+    // The mapping stays valid after the file is deleted.
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public List<Player> firstPage() {
+        return snapshot.getPlayersOnPage(1, PAGE_SIZE, SortingPolicy.BY_RATING);
+    }
+
+    @Benchmark
+    public List<Player> randomPage() {
+        int numPages = (numPlayers + PAGE_SIZE - 1) / PAGE_SIZE;
+        int page = 1 + ThreadLocalRandom.current().nextInt(numPages);
+        return snapshot.getPlayersOnPage(page, PAGE_SIZE, SortingPolicy.BY_REPUTATION);
+    }
+
+    @Benchmark
+    public int findRow() {
+        int playerId = 1 + ThreadLocalRandom.current().nextInt(numPlayers);
+        return snapshot.findRow(playerId);
+    }
+
+    @Benchmark
+    public int[] findRowsByNamePrefix() {
+        // Matches about one in nine players
+        return snapshot.findRowsByNamePrefix("User1", 10);
+    }
+}
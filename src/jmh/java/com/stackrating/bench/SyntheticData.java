@@ -0,0 +1,105 @@
+package com.stackrating.bench;
+
+import com.stackrating.model.Entry;
+import com.stackrating.model.TimeDataPoint;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates data with roughly the shape of Stack Overflow data. Most questions get one or two
+ * answers and a few get dozens, most answers get a couple of votes and a few get hundreds, and a
+ * small fraction of the players post most of the answers.
+ */
+public class SyntheticData {
+
+    private final static long MINUTE_MS = 60 * 1000L;
+    private final static long DAY_MS = 24 * 60 * MINUTE_MS;
+
+    // Roughly when the first Stack Overflow questions were posted
+    private final static long START_MS = 1217548800000L;
+
+    private final Random rnd;
+
+    public SyntheticData(long seed) {
+        rnd = new Random(seed);
+    }
+
+    /** Number of answers of a question. */
+    public int answerCount() {
+        // One percent of the questions are popular ones
+        if (rnd.nextInt(100) == 0) {
+            return 10 + rnd.nextInt(50);
+        }
+        // Geometric otherwise: 1 answer 50% of the time, 2 answers 25% of the time, ...
+        int n = 1;
+        while (n < 10 && rnd.nextBoolean()) {
+            n++;
+        }
+        return n;
+    }
+
+    /** Votes of an answer (score + 1 if accepted). */
+    public int votes() {
+        // Log-normal, shifted so that some answers are down voted
+        int votes = (int) Math.floor(Math.exp(rnd.nextGaussian() * 1.3)) - 1;
+        return Math.max(-5, votes);
+    }
+
+    /** Player id between 1 and numPlayers. Low ids are much more active than high ids. */
+    public int playerId(int numPlayers) {
+        double u = rnd.nextDouble();
+        return 1 + (int) (numPlayers * u * u * u);
+    }
+
+    public double rating() {
+        return 1500 + rnd.nextGaussian() * 150;
+    }
+
+    public int gamesPlayed() {
+        double u = rnd.nextDouble();
+        return (int) (2000 * u * u * u);
+    }
+
+    /**
+     * Entries of numGames consecutive games, in game id order, as loaded during a rejudge. A few
+     * percent of the answers are posted more than 90 days after the question.
+     */
+    public List<Entry> entries(int firstGameId, int numGames, int numPlayers) {
+        List<Entry> entries = new ArrayList<>();
+        int entryId = firstGameId;
+        for (int gameId = firstGameId; gameId < firstGameId + numGames; gameId++) {
+            Timestamp gamePostTime = new Timestamp(START_MS + gameId * MINUTE_MS / 2);
+            for (int a = answerCount(); a > 0; a--) {
+                long delay = rnd.nextInt(100) < 3
+                        ? (90 + rnd.nextInt(1000)) * DAY_MS
+                        : (long) (rnd.nextDouble() * rnd.nextDouble() * 7 * DAY_MS);
+                entries.add(new Entry(++entryId,
+                                      playerId(numPlayers),
+                                      gameId,
+                                      votes(),
+                                      new Timestamp(gamePostTime.getTime() + delay),
+                                      0,
+                                      null,
+                                      null,
+                                      gamePostTime));
+            }
+        }
+        return entries;
+    }
+
+    /** Rating deltas of a player with numEntries answers, as returned by EntryMapper.getRatingDeltas. */
+    public List<TimeDataPoint> ratingDeltas(int numEntries) {
+        List<TimeDataPoint> deltas = new ArrayList<>(numEntries);
+        long t = START_MS;
+        for (int i = 0; i < numEntries; i++) {
+            t += (long) (rnd.nextDouble() * 3 * DAY_MS);
+            // Answers posted late or without competition get a zero delta
+            double delta = rnd.nextInt(4) == 0 ? 0 : rnd.nextGaussian() * 3;
+            deltas.add(new TimeDataPoint(t, delta));
+        }
+        return deltas;
+    }
+}
@@ -0,0 +1,54 @@
+package com.stackrating.elo;
+
+import com.stackrating.bench.SyntheticData;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Rating deltas of a single game with the given number of answers. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EloCalculatorBenchmark {
+
+    @Param({"2", "5", "20", "60"})
+    int numAnswers;
+
+    int[] gamesPlayed;
+    double[] ratings;
+    double[] scores;
+    double[] deltas;
+    List<EloCalculator.PlayerInfo> playerInfos;
+
+    @Setup
+    public void setup() {
+        SyntheticData data = new SyntheticData(42);
+        gamesPlayed = new int[numAnswers];
+        ratings = new double[numAnswers];
+        scores = new double[numAnswers];
+        deltas = new double[numAnswers];
+        playerInfos = new ArrayList<>();
+        for (int i = 0; i < numAnswers; i++) {
+            gamesPlayed[i] = data.gamesPlayed();
+            ratings[i] = data.rating();
+            scores[i] = data.votes();
+            playerInfos.add(new EloCalculator.PlayerInfo(gamesPlayed[i], ratings[i], scores[i]));
+        }
+    }
+
+    @Benchmark
+    public double[] list() {
+        return EloCalculator.computeRatingDeltas(playerInfos);
+    }
+
+    @Benchmark
+    public double[] arrays() {
+        EloCalculator.computeRatingDeltas(numAnswers, gamesPlayed, ratings, scores, deltas);
+        return deltas;
+    }
+}
@@ -0,0 +1,33 @@
+package com.stackrating.storage;
+
+import com.stackrating.bench.SyntheticData;
+import com.stackrating.model.TimeDataPoint;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Aggregation of a player's rating deltas into the daily rating graph of the player page. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RatingGraphBenchmark {
+
+    @Param({"10", "1000", "30000"})
+    int numEntries;
+
+    List<TimeDataPoint> ratingDeltas;
+
+    @Setup
+    public void setup() {
+        ratingDeltas = new SyntheticData(42).ratingDeltas(numEntries);
+    }
+
+    @Benchmark
+    public List<TimeDataPoint> ratingGraph() {
+        return Storage.toRatingGraph(ratingDeltas);
+    }
+}
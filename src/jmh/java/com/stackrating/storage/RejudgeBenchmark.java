@@ -0,0 +1,75 @@
+package com.stackrating.storage;
+
+import com.stackrating.bench.SyntheticData;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/** Replay of a window of games, as done by RatingUpdater, without the database. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RejudgeBenchmark {
+
+    private final static double EPSILON = 1e-6;
+
+    @Param({"1000", "100000"})
+    int numGames;
+
+    @Param({"100000"})
+    int numPlayers;
+
+    EntryColumns entries;
+    int[] gameStarts;
+    int numGameStarts;
+    PlayerStateTracker playerStates;
+    ForkJoinPool pool;
+    WaveScheduler scheduler;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        entries = new EntryColumns(new SyntheticData(42).entries(1, numGames, numPlayers));
+        gameStarts = new int[entries.size()];
+        for (int i = 0; i < entries.size(); i = entries.getGameEnd(i)) {
+            gameStarts[numGameStarts++] = i;
+        }
+        pool = new ForkJoinPool();
+        scheduler = new WaveScheduler(pool);
+    }
+
+    // Start each iteration from scratch. Within an iteration, each invocation continues from the
+    // ratings of the previous one, so ratings drift across invocations. This doesn't change the
+    // amount of work per game, which doesn't depend on the ratings.
+    @Setup(Level.Iteration)
+    public void setupIteration() {
+        playerStates = new PlayerStateTracker();
+        for (int i = 0; i < entries.size(); i++) {
+            playerStates.initialize(entries.getPlayerId(i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public PlayerStateTracker sequential() {
+        for (int g = 0; g < numGameStarts; g++) {
+            int from = gameStarts[g];
+            int to = g + 1 < numGameStarts ? gameStarts[g + 1] : entries.size();
+            RatingUpdater.recomputeRatingDeltaFields(playerStates, entries, from, to, EPSILON);
+        }
+        return playerStates;
+    }
+
+    @Benchmark
+    public double waves() {
+        return scheduler.judgeAll(entries, 0, entries.size(), (from, to) ->
+                RatingUpdater.recomputeRatingDeltaFields(playerStates, entries, from, to, EPSILON));
+    }
+}
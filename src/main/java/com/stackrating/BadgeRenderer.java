@@ -0,0 +1,118 @@
+package com.stackrating;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Renders the rating badges. The template is decoded once, and the characters of the ratings are
+ * drawn once each into glyph images which are then just copied onto the template. Encoded badges
+ * are cached by the formatted rating, since many players share the same rating.
+ */
+public class BadgeRenderer {
+
+    private final static String PRERENDERED_CHARS = "0123456789.,-";
+    private final static Color TEXT_COLOR = new Color(0, 119, 204);
+    private final static float FONT_SIZE = 15f;
+    private final static int RIGHT_MARGIN = 3;
+    private final static int BASELINE = 20;
+
+    private final BufferedImage template;
+    private final Font font;
+    private final Map<Character, Glyph> glyphs = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> pngCache;
+
+    // A pre-rendered character. The image is as high as the template and has the character drawn
+    // at the baseline, PADDING pixels from the left edge.
+    private static class Glyph {
+        final static int PADDING = 2;
+        final BufferedImage image;
+        final int advance;
+
+        Glyph(BufferedImage image, int advance) {
+            this.image = image;
+            this.advance = advance;
+        }
+    }
+
+    public BadgeRenderer(int cacheSize) throws IOException {
+        try (InputStream is = BadgeRenderer.class.getResourceAsStream("/badge.png")) {
+            BufferedImage decoded = ImageIO.read(is);
+            template = new BufferedImage(decoded.getWidth(), decoded.getHeight(), BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = template.createGraphics();
+            g.drawImage(decoded, 0, 0, null);
+            font = g.getFont().deriveFont(FONT_SIZE);
+            g.dispose();
+        }
+        for (char c : PRERENDERED_CHARS.toCharArray()) {
+            glyphs.put(c, renderGlyph(c));
+        }
+        pngCache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /** Returns the badge with the given (formatted) rating as PNG. */
+    public byte[] getPng(String rating) {
+        synchronized (pngCache) {
+            byte[] png = pngCache.get(rating);
+            if (png != null) {
+                return png;
+            }
+        }
+        byte[] png = renderPng(rating);
+        synchronized (pngCache) {
+            pngCache.put(rating, png);
+        }
+        return png;
+    }
+
+    byte[] renderPng(String rating) {
+        BufferedImage badge = new BufferedImage(template.getColorModel(), template.copyData(null), false, null);
+        Graphics2D g = badge.createGraphics();
+        int x = badge.getWidth() - RIGHT_MARGIN;
+        for (int i = 0; i < rating.length(); i++) {
+            x -= glyphs.computeIfAbsent(rating.charAt(i), this::renderGlyph).advance;
+        }
+        for (int i = 0; i < rating.length(); i++) {
+            Glyph glyph = glyphs.get(rating.charAt(i));
+            g.drawImage(glyph.image, x - Glyph.PADDING, 0, null);
+            x += glyph.advance;
+        }
+        g.dispose();
+
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        try {
+            ImageIO.write(badge, "PNG", png);
+        } catch (IOException e) {
+            // Writing to a byte array doesn't fail
+            throw new AssertionError(e);
+        }
+        return png.toByteArray();
+    }
+
+    private Glyph renderGlyph(char c) {
+        BufferedImage probe = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D pg = probe.createGraphics();
+        int advance = pg.getFontMetrics(font).charWidth(c);
+        pg.dispose();
+
+        BufferedImage image = new BufferedImage(advance + 2 * Glyph.PADDING, template.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        g.setFont(font);
+        g.setColor(TEXT_COLOR);
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        g.drawString(String.valueOf(c), Glyph.PADDING, BASELINE);
+        g.dispose();
+        return new Glyph(image, advance);
+    }
+}
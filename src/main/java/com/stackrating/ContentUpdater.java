@@ -3,12 +3,14 @@ package com.stackrating;
 import com.stackrating.model.Game;
 import com.stackrating.monitor.SOContentDownloader;
 import com.stackrating.storage.NonThrowingCloseable;
+import com.stackrating.storage.RejudgeMode;
 import com.stackrating.storage.Storage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.time.Duration;
+import java.util.OptionalInt;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -29,6 +31,11 @@ public class ContentUpdater {
     //    run out of quota.
 //    private boolean lastCycleIncomplete;
 
+    // The games changed during a cycle are only tracked in memory. Until a cycle has completed in
+    // this process, changes written by an earlier process (or by an interrupted cycle) may not have
+    // been rejudged, so the rejudge then starts no later than the cycle start game.
+    private boolean lastCycleCompleted = false;
+
     // For graceful shutdowns
     SOContentDownloader contentDownloader;
     private Semaphore control = new Semaphore(1);
@@ -38,6 +45,11 @@ public class ContentUpdater {
         contentDownloader = new SOContentDownloader(storage);
     }
 
+    /** Returns the number of player writes that were replaced by later writes before a flush. */
+    public long getNumCoalescedPlayerWrites() {
+        return contentDownloader.getNumCoalescedPlayerWrites();
+    }
+
     // Questions should keep being revisited as long as they are younger than 90 days. When a
     // question is older than 90 days it is "archived" and no longer revisited.
     //
@@ -45,34 +57,84 @@ public class ContentUpdater {
     // revisited.
 
     public void doUpdateCycle() throws InterruptedException {
+        boolean rejudgeFromCycleStart = !lastCycleCompleted;
+        lastCycleCompleted = false;
         setCycleStartTime();
-        contentDownloader.refreshQuestions(cycleStartGame.getPostTime().toInstant());
+        try {
+            contentDownloader.refreshQuestions(cycleStartGame.getPostTime().toInstant());
+            if (!Main.shutdownRequested) {
+                contentDownloader.refreshPlayers();
+            }
+        } catch (Exception e) {
+            // Keep what was downloaded, but don't let a failing flush hide the original error.
+            try {
+                contentDownloader.flushPlayerWrites();
+            } catch (RuntimeException flushError) {
+                e.addSuppressed(flushError);
+            }
+            throw e;
+        }
+        contentDownloader.flushPlayerWrites();
         if (Main.shutdownRequested) {
             return;
         }
-        contentDownloader.refreshPlayers();
+
+        // Only games from the first game with new entries or changed votes need to be rejudged.
+        OptionalInt firstChangedGameId = contentDownloader.getFirstChangedGameId();
+        if (rejudgeFromCycleStart) {
+            logger.info("No completed cycle in this process. Rejudging from the cycle start game.");
+            firstChangedGameId = OptionalInt.of(Math.min(cycleStartGame.getId(),
+                                                         firstChangedGameId.orElse(Integer.MAX_VALUE)));
+        }
+        logSkippedGames(firstChangedGameId);
+        if (firstChangedGameId.isPresent()) {
+            doDatabaseFixup(firstChangedGameId.getAsInt(), RejudgeMode.PIPELINED);
+        } else {
+            updateRepPositions();
+        }
+        if (!Main.shutdownRequested) {
+            contentDownloader.resetFirstChangedGameId();
+            lastCycleCompleted = true;
+        }
+    }
+    
+    public void doDatabaseFixup(int fromGameId, RejudgeMode mode) {
+        updateRepPositions();
         if (Main.shutdownRequested) {
             return;
         }
-        doDatabaseFixup(cycleStartGame.getId());
+        try (NonThrowingCloseable c = storage.openSession()) {
+            // Update rating_deltas in entries and all ratings and rating positions for the players.
+            logger.info("Recalculating rating deltas from game " + fromGameId + " onwards...");
+            storage.rejudgeGames(fromGameId, mode);
+        }
     }
     
-    public void doDatabaseFixup(int fromGameId) {
+    private void updateRepPositions() {
         // While fetching new questions, seen users are updated too. Adjust their rep positions.
         logger.info("Updating rep positions...");
         try (NonThrowingCloseable c = storage.openSession()) {
             storage.updateRepPositions();
         }
-        if (Main.shutdownRequested) {
-            return;
-        }
+    }
+
+    private void logSkippedGames(OptionalInt firstChangedGameId) {
         try (NonThrowingCloseable c = storage.openSession()) {
-            // Update rating_deltas in entries and all ratings and rating positions for the players.
-            logger.info("Recalculating rating deltas from game " + fromGameId + " onwards...");
-            storage.rejudgeGames(fromGameId);
+            int numRefreshed = storage.countGamesFrom(cycleStartGame.getId());
+            int numToRejudge = firstChangedGameId.isPresent()
+                    ? storage.countGamesFrom(firstChangedGameId.getAsInt())
+                    : 0;
+            if (firstChangedGameId.isPresent()) {
+                logger.info("First changed game: {}", firstChangedGameId.getAsInt());
+            } else {
+                logger.info("No games changed during this cycle.");
+            }
+            logger.info("Games rejudged: {}, skipped: {}",
+                        numToRejudge,
+                        Math.max(0, numRefreshed - numToRejudge));
         }
     }
-    
+
     private void setCycleStartTime() {
         try (NonThrowingCloseable c = storage.openSession()) {
             logger.info("Figuring out refresh cycle starting point...");
@@ -1,6 +1,8 @@
 package com.stackrating;
 
 import com.stackrating.model.*;
+import com.stackrating.storage.ConnectionPool;
+import com.stackrating.storage.RejudgeMode;
 import com.stackrating.storage.Storage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -9,14 +11,12 @@ import spark.Request;
 import spark.Spark;
 import spark.template.freemarker.FreeMarkerEngine;
 
-import javax.imageio.ImageIO;
-import java.awt.*;
-import java.awt.geom.Rectangle2D;
-import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
 
@@ -33,12 +33,19 @@ public class Main {
 
     private final static int USERS_PER_PAGE = 50;
     private final static int ENTRIES_PER_PAGE = 50;
+    private final static int DEFAULT_API_WINDOW = 10;
+    private final static int MAX_API_WINDOW = 100;
+    private final static int MAX_NAME_MATCHES = 10;
+    private final static int PLAYER_CACHE_SIZE = 100_000;
+    private final static int BADGE_CACHE_SIZE = 10_000;
 
     public static volatile boolean shutdownRequested = false;
 
     static private Storage storage;
     static private ContentUpdater contentUpdater;
     static private PlayerListCache playerListCache;
+    static private PlayerCache playerCache;
+    static private BadgeRenderer badgeRenderer;
 
     public static void main(String[] args) throws Exception {
 
@@ -55,21 +62,51 @@ public class Main {
 
         storage = new Storage();
         playerListCache = new PlayerListCache(storage);
+        playerCache = new PlayerCache(storage, PLAYER_CACHE_SIZE);
+        badgeRenderer = new BadgeRenderer(BADGE_CACHE_SIZE);
         contentUpdater = new ContentUpdater(storage);
 
         // If we did an unclean shutdown (left the database in a state where for instance positions
         // don't reflect a sorted rating/reputation or a question was downloaded but not yet
-        // judged) we here give the user a chance to do a database fixup before launch.
+        // judged) we here give the user a chance to do a database fixup before launch. Since all
+        // games are rejudged, it's done in memory in one go rather than window by window.
         boolean safeStart = false; // TODO: Make cmd line argument
         if (safeStart) {
-            contentUpdater.doDatabaseFixup(0);
+            contentUpdater.doDatabaseFixup(0, RejudgeMode.IN_MEMORY);
         }
 
-        reloadPlayerListCache();
+        // Serve the snapshot from the last run (if any) while the cache is refreshed
+        if (playerListCache.loadLatestSnapshot()) {
+            new Thread(Main::reloadPlayerListCache, "player-list-refresh").start();
+        } else {
+            reloadPlayerListCache();
+        }
         startSpark();
 
         // Save quota! Don't run when developing.
-        contentUpdater.startLooping(Main::reloadPlayerListCache);
+        contentUpdater.startLooping(Main::onUpdateCycleDone);
+    }
+
+    private static void onUpdateCycleDone() {
+        reloadPlayerListCache();
+        logger.info(String.format("Player cache hit rate: %.1f%% (%d hits, %d misses, %d evictions). Invalidating.",
+                                  100 * playerCache.getHitRate(),
+                                  playerCache.getHits(),
+                                  playerCache.getMisses(),
+                                  playerCache.getEvictions()));
+        playerCache.invalidateAll();
+
+        for (ConnectionPool pool : storage.getConnectionPools()) {
+            logger.info(String.format("Connection pool %s: %d acquisitions, %d timeouts, avg wait %.1f ms, max wait %.1f ms, %d/%d active, %d idle.",
+                                      pool.getName(),
+                                      pool.getAcquisitions(),
+                                      pool.getTimeouts(),
+                                      pool.getAverageWaitMillis(),
+                                      pool.getMaxWaitMillis(),
+                                      pool.getActiveCount(),
+                                      pool.getSize(),
+                                      pool.getIdleCount()));
+        }
     }
 
     private static void reloadPlayerListCache() {
@@ -84,8 +121,10 @@ public class Main {
 
         staticFiles.location("/static");
 
-        before("/*", (req, res) -> storage.openSession());
-        after("/*", (req, res) -> storage.closeSession());
+        // Sessions are opened on first use, so requests that don't query the database (such as
+        // the /api endpoints, which are served from the player list cache) never hold a connection.
+        before("/*", (req, res) -> storage.openReadOnlySession());
+        afterAfter("/*", (req, res) -> storage.closeSession());
 
         get("/", (req, res) -> {
             res.redirect("/list/byRating");
@@ -95,7 +134,7 @@ public class Main {
         ////////////////////////////////////////////////////////////////////////////////////////////
         get("/rating/:userId", (req, res) -> {
             int userId = parseIntParam(req, ":userId");
-            Player player = storage.findPlayer(userId).orElseThrow(NotFoundException::new);
+            Player player = playerCache.findPlayer(userId).orElseThrow(NotFoundException::new);
             return String.format("%.2f", player.getRating());
         });
 
@@ -120,29 +159,36 @@ public class Main {
 
         ////////////////////////////////////////////////////////////////////////////////////////////
         get("/list/:sort", (req, res) -> {
-            SortingPolicy sortBy = req.params(":sort").equals("byRating") ? BY_RATING : BY_REPUTATION;
-            int userCount = playerListCache.getUserCount();
+            SortingPolicy sortBy = parseSortParam(req);
+            PlayerListSnapshot playerList = playerListCache.getSnapshot();
+            int userCount = playerList.getUserCount();
             int numPages = (int) Math.ceil((double) userCount / USERS_PER_PAGE);
             int currentPage = parseInt(req.queryParams("page")).orElse(1);
             currentPage = clamp(1, currentPage, numPages);
 
-            // Handle search query
-            Optional<Player> highlightedPlayer = Optional.empty();
+            // Handle search query (user id or beginning of display name)
+            int highlightedRow = -1;
+            List<Player> nameMatches = new ArrayList<>();
             String searchQuery = req.queryParams("userId");
             if (searchQuery != null) {
                 searchQuery = searchQuery.trim();
                 try {
                     int soughtUserId = Integer.parseInt(searchQuery);
-                    highlightedPlayer = storage.findPlayer(soughtUserId);
+                    highlightedRow = playerList.findRow(soughtUserId);
                 } catch (NumberFormatException e) {
-                    // Do nothing
+                    if (!searchQuery.isEmpty()) {
+                        int[] rows = playerList.findRowsByNamePrefix(searchQuery, MAX_NAME_MATCHES);
+                        for (int row : rows) {
+                            nameMatches.add(playerList.getPlayer(row));
+                        }
+                        highlightedRow = rows.length > 0 ? rows[0] : -1;
+                    }
                 }
             }
 
             // If search -> override current page
-            if (highlightedPlayer.isPresent()) {
-                Player player = highlightedPlayer.get();
-                int pos = sortBy == BY_RATING ? player.getRatingPos() : player.getRepPos();
+            if (highlightedRow != -1) {
+                int pos = playerList.getPosition(highlightedRow, sortBy);
                 currentPage = ((pos - 1) / USERS_PER_PAGE) + 1;
             }
 
@@ -150,8 +196,7 @@ public class Main {
             //List<Player> usersOnPage = sortBy == BY_RATING
             //       ? storage.getByRatingPage(currentPage, USERS_PER_PAGE)
             //       : storage.getByRepPage(currentPage, USERS_PER_PAGE);
-            List<Integer> userIdsOnPage = playerListCache.getIdsForPage(currentPage, USERS_PER_PAGE, sortBy);
-            List<Player> usersOnPage = storage.getUsersByIds(userIdsOnPage);
+            List<Player> usersOnPage = playerList.getPlayersOnPage(currentPage, USERS_PER_PAGE, sortBy);
 
             // Template attributes
             Map<String, Object> attrs = new HashMap<>();
@@ -159,9 +204,9 @@ public class Main {
             attrs.put("currentPage", currentPage);
             attrs.put("numPages", numPages);
             attrs.put("sortBy", sortBy == BY_RATING ? "rating" : "rep");
-            attrs.put("useNumericId", searchQuery != null && !searchQuery.matches("\\d+"));
-            attrs.put("userNotFound", searchQuery != null && searchQuery.matches("\\d+") && !highlightedPlayer.isPresent());
-            attrs.put("highlightedUser", highlightedPlayer.map(Player::getId).orElse(-2));
+            attrs.put("userNotFound", searchQuery != null && !searchQuery.isEmpty() && highlightedRow == -1);
+            attrs.put("nameMatches", nameMatches.size() > 1 ? nameMatches : List.of());
+            attrs.put("highlightedUser", highlightedRow != -1 ? playerList.getPlayer(highlightedRow).getId() : -2);
             attrs.put("users", usersOnPage);
 
             // Return page
@@ -174,7 +219,7 @@ public class Main {
 
             // Load content
             int userId = parseIntParam(req, ":userId");
-            Player player = storage.findPlayer(userId).orElseThrow(NotFoundException::new);
+            Player player = playerCache.findPlayer(userId).orElseThrow(NotFoundException::new);
 
             int numEntries = storage.getEntryCountForUser(userId);
             int numPages = (int) Math.ceil((double) numEntries / ENTRIES_PER_PAGE);
@@ -220,45 +265,117 @@ public class Main {
         get("/badge/:userId", (req, res) -> {
 
             int userId = parseIntParam(req, ":userId");
-            Player player = storage.findPlayer(userId).orElseThrow(NotFoundException::new);
-
-            Image template = ImageIO.read(Main.class.getResourceAsStream("/badge.png"));
-
-            BufferedImage bi = new BufferedImage(template.getWidth(null), template.getHeight(null), BufferedImage.TYPE_INT_ARGB);
-            Graphics2D g = (Graphics2D) bi.getGraphics();
-
-//            g.setColor(Color.WHITE);
-//            g.fillRect(0, 0, bi.getWidth(), bi.getHeight());
-            g.drawImage(template, 0, 0, null);
-
-            g.setFont(g.getFont().deriveFont(15f));
-            g.setColor(new Color(0, 119, 204));
-            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            Player player = playerCache.findPlayer(userId).orElseThrow(NotFoundException::new);
+            String str = String.format("%.2f", player.getRating());
 
-//          g.setRenderingHint(
-//                  RenderingHints.KEY_TEXT_ANTIALIASING,
-//                  RenderingHints.VALUE_TEXT_ANTIALIAS_GASP);
+            // The badge only depends on the rating, so clients can revalidate by it.
+            String etag = "\"" + str + "\"";
+            res.header("ETag", etag);
+            res.header("Cache-Control", "no-cache");
+            if (etag.equals(req.headers("If-None-Match"))) {
+                res.status(304);
+                return "";
+            }
 
-            String str = String.format("%.2f", player.getRating());
-            Rectangle2D r = g.getFontMetrics().getStringBounds(str, g);
-            g.drawString(str, (int) (bi.getWidth() - 3 - r.getWidth()), 20);
+            res.type("image/png");
             try (OutputStream os = res.raw().getOutputStream()) {
-                ImageIO.write(bi, "PNG", os);
+                os.write(badgeRenderer.getPng(str));
             } catch (IOException e) {
                 logger.warn("Could not write badge PNG response: " + e.getMessage());
             }
             return res.raw();
         });
 
+        ////////////////////////////////////////////////////////////////////////////////////////////
+        // Players around the given user, for instance /api/list/byRating/around/123?size=10
+        get("/api/list/:sort/around/:userId", (req, res) -> {
+            SortingPolicy sortBy = parseSortParam(req);
+            int userId = parseIntParam(req, ":userId");
+            int size = parseApiWindowSize(req);
+            PlayerListSnapshot playerList = playerListCache.getSnapshot();
+
+            int row = playerList.findRow(userId);
+            int pos = row == -1 ? 0 : playerList.getPosition(row, sortBy);
+            if (pos == 0) {
+                throw new NotFoundException();
+            }
+            int from = clamp(0, pos - 1 - size / 2, Math.max(0, playerList.getListSize(sortBy) - size));
+            List<Player> players = playerList.getPlayersInRange(from, from + size, sortBy);
+
+            res.type("application/json");
+            return PlayerListJson.toJson(sortBy, playerList.getListSize(sortBy), players);
+        });
+
+        ////////////////////////////////////////////////////////////////////////////////////////////
+        // Players starting at the given (1-based) position, for instance /api/list/byRep/from/1?size=10
+        get("/api/list/:sort/from/:pos", (req, res) -> {
+            SortingPolicy sortBy = parseSortParam(req);
+            int pos = parseIntParam(req, ":pos");
+            int size = parseApiWindowSize(req);
+            if (pos < 1) {
+                throw new BadRequestException();
+            }
+            PlayerListSnapshot playerList = playerListCache.getSnapshot();
+            List<Player> players = playerList.getPlayersInRange(pos - 1, pos - 1 + size, sortBy);
+
+            res.type("application/json");
+            return PlayerListJson.toJson(sortBy, playerList.getListSize(sortBy), players);
+        });
+
+        ////////////////////////////////////////////////////////////////////////////////////////////
+        // Connection pool and cache metrics, one "name{labels} value" per line
+        get("/metrics", (req, res) -> {
+            res.type("text/plain");
+            return getMetrics();
+        });
+
         exception(BadRequestException.class, (e, req, res) -> res.status(400));
         exception(NotFoundException.class, (e, req, res) -> res.status(404));
     }
 
+    private static String getMetrics() {
+        StringBuilder sb = new StringBuilder();
+        for (ConnectionPool pool : storage.getConnectionPools()) {
+            String labels = "{pool=\"" + pool.getName() + "\"}";
+            appendMetric(sb, "db_pool_size" + labels, pool.getSize());
+            appendMetric(sb, "db_pool_active" + labels, pool.getActiveCount());
+            appendMetric(sb, "db_pool_idle" + labels, pool.getIdleCount());
+            appendMetric(sb, "db_pool_waiting" + labels, pool.getWaitingCount());
+            appendMetric(sb, "db_pool_acquisitions" + labels, pool.getAcquisitions());
+            appendMetric(sb, "db_pool_timeouts" + labels, pool.getTimeouts());
+            appendMetric(sb, "db_pool_wait_ms_avg" + labels, pool.getAverageWaitMillis());
+            appendMetric(sb, "db_pool_wait_ms_max" + labels, pool.getMaxWaitMillis());
+        }
+        appendMetric(sb, "player_cache_hits", playerCache.getHits());
+        appendMetric(sb, "player_cache_misses", playerCache.getMisses());
+        appendMetric(sb, "player_cache_evictions", playerCache.getEvictions());
+        appendMetric(sb, "player_cache_hit_rate", playerCache.getHitRate());
+        appendMetric(sb, "player_writes_coalesced", contentUpdater.getNumCoalescedPlayerWrites());
+        return sb.toString();
+    }
+
+    private static void appendMetric(StringBuilder sb, String name, long value) {
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void appendMetric(StringBuilder sb, String name, double value) {
+        sb.append(name).append(' ').append(String.format(Locale.ROOT, "%.3f", value)).append('\n');
+    }
+
     private static int parseIntParam(Request req, String param) {
         return parseInt(req.params(param))
                 .orElseThrow(BadRequestException::new);
     }
 
+    private static SortingPolicy parseSortParam(Request req) {
+        return req.params(":sort").equals("byRating") ? BY_RATING : BY_REPUTATION;
+    }
+
+    private static int parseApiWindowSize(Request req) {
+        int size = parseInt(req.queryParams("size")).orElse(DEFAULT_API_WINDOW);
+        return clamp(1, size, MAX_API_WINDOW);
+    }
+
     private static void shutdown() throws InterruptedException {
 
         shutdownRequested = true;
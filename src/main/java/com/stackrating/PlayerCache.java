@@ -0,0 +1,112 @@
+package com.stackrating;
+
+import com.stackrating.model.Player;
+import com.stackrating.storage.Storage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read-through cache in front of {@link Storage#findPlayer(int)}, for the pages that show a single
+ * player (most notably the badges).
+ *
+ * The cache is split in segments, each of which is an LRU map guarded by its own lock. All entries
+ * are invalidated at once when the ratings have been updated, see {@link #invalidateAll()}.
+ */
+public class PlayerCache {
+
+    private final static int NUM_SEGMENTS = 16;
+
+    private final Storage storage;
+    private final Segment[] segments = new Segment[NUM_SEGMENTS];
+
+    // Incremented on invalidation, so that players loaded before an invalidation aren't cached
+    private final AtomicLong generation = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public PlayerCache(Storage storage, int capacity) {
+        this.storage = storage;
+        for (int i = 0; i < NUM_SEGMENTS; i++) {
+            segments[i] = new Segment(Math.max(1, capacity / NUM_SEGMENTS));
+        }
+    }
+
+    /** Same as {@link Storage#findPlayer(int)}, but cached. Requires an open session on a miss. */
+    public Optional<Player> findPlayer(int id) {
+        Segment segment = segments[Math.floorMod(id, NUM_SEGMENTS)];
+        Optional<Player> player;
+        synchronized (segment) {
+            player = segment.get(id);
+        }
+        if (player != null) {
+            hits.increment();
+            return player;
+        }
+
+        misses.increment();
+        long loadGeneration = generation.get();
+        player = storage.findPlayer(id);
+        synchronized (segment) {
+            if (generation.get() == loadGeneration) {
+                segment.put(id, player);
+            }
+        }
+        return player;
+    }
+
+    /** Removes all players, for instance since their ratings have been updated. */
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public double getHitRate() {
+        long hits = getHits();
+        long lookups = hits + getMisses();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    // LRU map. Not thread safe.
+    private class Segment extends LinkedHashMap<Integer, Optional<Player>> {
+
+        private final static long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Optional<Player>> eldest) {
+            if (size() > capacity) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+}
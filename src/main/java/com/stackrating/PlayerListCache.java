@@ -2,79 +2,149 @@ package com.stackrating;
 
 import com.stackrating.storage.NonThrowingCloseable;
 import com.stackrating.storage.Storage;
-import org.apache.ibatis.cursor.Cursor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.io.*;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
-/** Used to keep rep/rating positions in memory for fast user list page retrieval. */
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Used to keep the player lists in memory, so that list pages can be served without database
+ * queries.
+ *
+ * Each regeneration writes a new generation file and then publishes it as a new snapshot. Readers
+ * keep using the snapshot they got, so they never see a half written list. On startup the latest
+ * generation file can be served right away, until the first regeneration is done.
+ */
 public class PlayerListCache {
 
-    private final static Path REP_CACHE_FILE = Paths.get("repListCache.dat");
-    private final static Path RATING_CACHE_FILE = Paths.get("ratingListCache.dat");
+    private final static Logger logger = LoggerFactory.getLogger(PlayerListCache.class);
+
+    private final static Path CACHE_DIR = Paths.get(".");
+    private final static String CACHE_FILE_PREFIX = "playerListCache-";
+    private final static String CACHE_FILE_SUFFIX = ".dat";
 
     private final Storage storage;
-    private int userCount;
+    private final AtomicReference<PlayerListSnapshot> snapshot = new AtomicReference<>(PlayerListSnapshot.EMPTY);
 
     public PlayerListCache(Storage storage) {
         this.storage = storage;
     }
 
-    private Path cacheFile(SortingPolicy sortingPolicy) {
-        switch (sortingPolicy) {
-            case BY_RATING: return RATING_CACHE_FILE;
-            case BY_REPUTATION: return REP_CACHE_FILE;
-            default: throw new AssertionError("Unknown sorting policy.");
+    private static Path cacheFile(long generation) {
+        return CACHE_DIR.resolve(CACHE_FILE_PREFIX + generation + CACHE_FILE_SUFFIX);
+    }
+
+    /**
+     * Loads the latest generation file with a valid checksum, if any.
+     *
+     * @return true if a snapshot was loaded
+     */
+    public boolean loadLatestSnapshot() {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(CACHE_DIR, CACHE_FILE_PREFIX + "*" + CACHE_FILE_SUFFIX)) {
+            dir.forEach(files::add);
+        } catch (IOException e) {
+            logger.warn("Could not list player list cache files.", e);
+            return false;
         }
+
+        // Latest generation first
+        files.sort(Comparator.comparingLong(PlayerListCache::generationOf).reversed());
+        for (Path file : files) {
+            try {
+                PlayerListSnapshot loaded = PlayerListSnapshot.map(file);
+                if (loaded.getGeneration() != generationOf(file) || !loaded.isChecksumValid()) {
+                    logger.warn("Ignoring corrupt player list cache file {}.", file);
+                    continue;
+                }
+                snapshot.set(loaded);
+                logger.info("Loaded player list cache generation {} ({} users, max game id {}).",
+                            loaded.getGeneration(), loaded.getUserCount(), loaded.getSourceMaxGameId());
+                return true;
+            } catch (IOException e) {
+                logger.warn("Ignoring unreadable player list cache file " + file + ".", e);
+            }
+        }
+        return false;
     }
 
-    public void regenerateCache() {
-        regenerateCacheHelper(SortingPolicy.BY_RATING);
-        regenerateCacheHelper(SortingPolicy.BY_REPUTATION);
+    // Generation in the file name, or -1 if the name doesn't contain one
+    private static long generationOf(Path file) {
+        String name = file.getFileName().toString();
+        String generation = name.substring(CACHE_FILE_PREFIX.length(), name.length() - CACHE_FILE_SUFFIX.length());
+        try {
+            return Long.parseLong(generation);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
     }
 
-    private void regenerateCacheHelper(SortingPolicy sortingPolicy) {
-        userCount = 0;
-        File cacheFile = cacheFile(sortingPolicy).toFile();
-        try (NonThrowingCloseable c = storage.openSession();
-             FileOutputStream fos = new FileOutputStream(cacheFile);
-             BufferedOutputStream bos = new BufferedOutputStream(fos);
-             DataOutputStream dos = new DataOutputStream(bos);
-             Cursor<Integer> ratingIter = storage.getAllPlayerIds(sortingPolicy)) {
-            for (int id : ratingIter) {
-                userCount++;
-                dos.writeInt(id);
+    // Synchronized, since the startup refresh may overlap with the refresh of the first update cycle
+    public synchronized void regenerateCache() {
+        long generation = snapshot.get().getGeneration() + 1;
+        Path cacheFile = cacheFile(generation);
+        Path tmpFile = CACHE_DIR.resolve(cacheFile.getFileName() + ".tmp");
+        try {
+            PlayerListSnapshot.Builder builder = loadPlayers();
+            try (FileChannel channel = FileChannel.open(tmpFile, CREATE, TRUNCATE_EXISTING, WRITE)) {
+                builder.writeTo(channel, generation);
+                channel.force(true);
             }
+            Files.move(tmpFile, cacheFile, ATOMIC_MOVE);
+            snapshot.set(PlayerListSnapshot.map(cacheFile));
         } catch (IOException e) {
-            e.printStackTrace();
+            // Keep serving the current snapshot
+            logger.error("Could not regenerate player list cache.", e);
+            return;
         }
+        deleteOldGenerations(generation);
     }
 
-    /** {@code page} is a 1-based value */
-    List<Integer> getIdsForPage(int pageNum, int pageSize, SortingPolicy sortingPolicy) {
-        List<Integer> page = new ArrayList<>(pageSize);
-        File cacheFile = cacheFile(sortingPolicy).toFile();
-        try (FileInputStream fis = new FileInputStream(cacheFile);
-             BufferedInputStream bis = new BufferedInputStream(fis);
-             DataInputStream dis = new DataInputStream(bis)) {
-            dis.skip((pageNum - 1) * pageSize * 4);
-            try {
-                while (page.size() < pageSize) {
-                    page.add(dis.readInt());
+    private PlayerListSnapshot.Builder loadPlayers() {
+        PlayerListSnapshot.Builder builder = new PlayerListSnapshot.Builder();
+        try (NonThrowingCloseable c = storage.openSession()) {
+            builder.setSourceMaxGameId(storage.getMaxGameId());
+        }
+        // One scan in id order. Both orderings are created by the builder.
+        storage.forEachPlayer(player ->
+                builder.addRow(player.getId(), player.getDisplayName(), player.getRep(), player.getRating()));
+        return builder;
+    }
+
+    // Old snapshots may still be in use, but their mappings stay valid after the files are removed.
+    private void deleteOldGenerations(long currentGeneration) {
+        String current = cacheFile(currentGeneration).getFileName().toString();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(CACHE_DIR, CACHE_FILE_PREFIX + "*")) {
+            for (Path file : files) {
+                if (!file.getFileName().toString().equals(current)) {
+                    Files.delete(file);
                 }
-            } catch (EOFException e) {
-                // Last page may may have less than pageSize entries.
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            logger.warn("Could not delete old player list cache files.", e);
         }
-        return page;
+    }
+
+    /** Returns the current snapshot. Use the same snapshot for all lookups of a request. */
+    PlayerListSnapshot getSnapshot() {
+        return snapshot.get();
     }
 
     public int getUserCount() {
-        return userCount;
+        return snapshot.get().getUserCount();
     }
 }
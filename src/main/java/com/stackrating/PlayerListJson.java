@@ -0,0 +1,54 @@
+package com.stackrating;
+
+import com.stackrating.model.Player;
+
+import java.util.List;
+import java.util.Locale;
+
+/** Formats slices of the player lists as JSON, for the /api endpoints. */
+enum PlayerListJson {
+    ; // Utility class -- not instantiable
+
+    static String toJson(SortingPolicy sortingPolicy, int listSize, List<Player> players) {
+        StringBuilder sb = new StringBuilder(64 + 128 * players.size());
+        sb.append("{\"sortBy\":\"").append(sortingPolicy == SortingPolicy.BY_RATING ? "rating" : "rep").append('"');
+        sb.append(",\"listSize\":").append(listSize);
+        sb.append(",\"players\":[");
+        for (int i = 0; i < players.size(); i++) {
+            Player p = players.get(i);
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"id\":").append(p.getId());
+            sb.append(",\"displayName\":");
+            appendString(sb, p.getDisplayName());
+            sb.append(",\"rating\":").append(String.format(Locale.ROOT, "%.2f", p.getRating()));
+            sb.append(",\"rep\":").append(p.getRep());
+            sb.append(",\"ratingPos\":").append(p.getRatingPos());
+            sb.append(",\"repPos\":").append(p.getRepPos());
+            sb.append('}');
+        }
+        return sb.append("]}").toString();
+    }
+
+    private static void appendString(StringBuilder sb, String str) {
+        sb.append('"');
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,584 @@
+package com.stackrating;
+
+import com.stackrating.model.Player;
+import com.stackrating.storage.PositionUpdater;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Immutable leaderboard, backed by a memory-mapped generation file written by
+ * {@link PlayerListCache}. Holds everything needed to render the player lists, so that list pages
+ * can be served without touching the database.
+ *
+ * Players are stored as rows in rating order. File layout (big endian):
+ * <pre>
+ *     int       magic number
+ *     int       format version
+ *     long      generation
+ *     int       max game id of the database the snapshot was created from
+ *     int       CRC32 of everything after the header
+ *     int       number of rows (n)
+ *     int       number of players in the rep list (m)
+ *     int       size of name arena in bytes
+ *     int       size of normalized name arena in bytes
+ *     double[n] rating
+ *     int[n]    player id
+ *     int[n]    rep
+ *     int[n+1]  offset of display name in name arena
+ *     int[m]    rows in rep order
+ *     int[n]    index in rep order of each row (-1 if not in the rep list)
+ *     int[n]    player ids, sorted
+ *     int[n]    rows of the sorted player ids
+ *     int[n+1]  offset of normalized name in normalized name arena
+ *     int[n]    rows, sorted by normalized name
+ *     int[b]    smallest row of each block of NAME_BLOCK_SIZE rows sorted by name
+ *     byte[]    name arena (UTF-8)
+ *     byte[]    normalized name arena (lower case UTF-8)
+ * </pre>
+ *
+ * Positions are 1-based indexes in the lists, and the sorted player ids make it possible to find
+ * the row (and thereby the positions) of a player with a binary search.
+ *
+ * Name searches find the range of rows with a given prefix by a binary search over the rows sorted
+ * by name. Since rows are in rating order, the best rated matches are the smallest rows in that
+ * range, and the block minimums make it possible to skip most of the range when it is large.
+ */
+class PlayerListSnapshot {
+
+    private final static int MAGIC = 0x53524c53; // "SRLS"
+    private final static int FORMAT_VERSION = 1;
+    private final static int HEADER_BYTES = 40;
+    private final static int NAME_BLOCK_SIZE = 64;
+
+    final static PlayerListSnapshot EMPTY = new Builder().build();
+
+    private final ByteBuffer data;
+    private final long generation;
+    private final int sourceMaxGameId;
+    private final int numRows;
+    private final DoubleBuffer ratings;
+    private final IntBuffer ids;
+    private final IntBuffer reps;
+    private final IntBuffer nameOffsets;
+    private final IntBuffer repOrder;
+    private final IntBuffer repIndexes;
+    private final IntBuffer sortedIds;
+    private final IntBuffer rowsOfSortedIds;
+    private final IntBuffer normNameOffsets;
+    private final IntBuffer nameOrder;
+    private final IntBuffer nameBlockMins;
+    private final ByteBuffer names;
+    private final ByteBuffer normNames;
+
+    private PlayerListSnapshot(ByteBuffer data) throws IOException {
+        if (data.limit() < HEADER_BYTES || data.getInt(0) != MAGIC) {
+            throw new IOException("Not a player list snapshot.");
+        }
+        if (data.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Unsupported player list snapshot format version: " + data.getInt(4));
+        }
+        this.data = data;
+        generation = data.getLong(8);
+        sourceMaxGameId = data.getInt(16);
+        numRows = data.getInt(24);
+        int numByRep = data.getInt(28);
+        int nameBytes = data.getInt(32);
+        int normNameBytes = data.getInt(36);
+        int numNameBlocks = numNameBlocks(numRows);
+
+        long expectedSize = HEADER_BYTES
+                + 8L * numRows
+                + 4L * (numRows + numRows + (numRows + 1) + numByRep + numRows + numRows + numRows
+                        + (numRows + 1) + numRows + numNameBlocks)
+                + nameBytes + normNameBytes;
+        if (data.limit() != expectedSize) {
+            throw new IOException("Truncated player list snapshot.");
+        }
+
+        int pos = HEADER_BYTES;
+        ratings = slice(data, pos, numRows * 8).asDoubleBuffer();
+        pos += numRows * 8;
+        ids = slice(data, pos, numRows * 4).asIntBuffer();
+        pos += numRows * 4;
+        reps = slice(data, pos, numRows * 4).asIntBuffer();
+        pos += numRows * 4;
+        nameOffsets = slice(data, pos, (numRows + 1) * 4).asIntBuffer();
+        pos += (numRows + 1) * 4;
+        repOrder = slice(data, pos, numByRep * 4).asIntBuffer();
+        pos += numByRep * 4;
+        repIndexes = slice(data, pos, numRows * 4).asIntBuffer();
+        pos += numRows * 4;
+        sortedIds = slice(data, pos, numRows * 4).asIntBuffer();
+        pos += numRows * 4;
+        rowsOfSortedIds = slice(data, pos, numRows * 4).asIntBuffer();
+        pos += numRows * 4;
+        normNameOffsets = slice(data, pos, (numRows + 1) * 4).asIntBuffer();
+        pos += (numRows + 1) * 4;
+        nameOrder = slice(data, pos, numRows * 4).asIntBuffer();
+        pos += numRows * 4;
+        nameBlockMins = slice(data, pos, numNameBlocks * 4).asIntBuffer();
+        pos += numNameBlocks * 4;
+        names = slice(data, pos, nameBytes);
+        pos += nameBytes;
+        normNames = slice(data, pos, normNameBytes);
+    }
+
+    /** Maps the given snapshot file. Only the header is validated, see {@link #isChecksumValid()}. */
+    static PlayerListSnapshot map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            // The mapping stays valid after the channel is closed (and after the file is deleted).
+            return new PlayerListSnapshot(channel.map(READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /** Returns true if the content matches the checksum in the header. Reads the whole snapshot. */
+    boolean isChecksumValid() {
+        CRC32 crc = new CRC32();
+        crc.update(slice(data, HEADER_BYTES, data.limit() - HEADER_BYTES));
+        return (int) crc.getValue() == data.getInt(20);
+    }
+
+    long getGeneration() {
+        return generation;
+    }
+
+    int getSourceMaxGameId() {
+        return sourceMaxGameId;
+    }
+
+    int getUserCount() {
+        return numRows;
+    }
+
+    /** Returns the players on the given page. {@code pageNum} is 1-based. */
+    List<Player> getPlayersOnPage(int pageNum, int pageSize, SortingPolicy sortingPolicy) {
+        int from = (pageNum - 1) * pageSize;
+        return getPlayersInRange(from, from + pageSize, sortingPolicy);
+    }
+
+    /** Returns the players at the (0-based) indexes from (inclusive) to (exclusive) of the given list. */
+    List<Player> getPlayersInRange(int from, int to, SortingPolicy sortingPolicy) {
+        int size = getListSize(sortingPolicy);
+        from = Math.max(0, Math.min(from, size));
+        to = Math.max(from, Math.min(to, size));
+        List<Player> players = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            players.add(getPlayer(getRow(i, sortingPolicy)));
+        }
+        return players;
+    }
+
+    /** Returns the row of the given player, or -1 if the player isn't in the snapshot. */
+    int findRow(int playerId) {
+        int lo = 0;
+        int hi = numRows - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int id = sortedIds.get(mid);
+            if (id < playerId) {
+                lo = mid + 1;
+            } else if (id > playerId) {
+                hi = mid - 1;
+            } else {
+                return rowsOfSortedIds.get(mid);
+            }
+        }
+        return -1;
+    }
+
+    /** Returns the 1-based position of the given row in the given list, or 0 if not listed. */
+    int getPosition(int row, SortingPolicy sortingPolicy) {
+        switch (sortingPolicy) {
+            case BY_RATING: return row + 1;
+            case BY_REPUTATION: return repIndexes.get(row) + 1;
+            default: throw new AssertionError("Unknown sorting policy.");
+        }
+    }
+
+    Player getPlayer(int row) {
+        return new Player(ids.get(row),
+                          getDisplayName(row),
+                          reps.get(row),
+                          ratings.get(row),
+                          getPosition(row, SortingPolicy.BY_REPUTATION),
+                          getPosition(row, SortingPolicy.BY_RATING));
+    }
+
+    /**
+     * Returns the rows of the best rated players whose display names start with the given prefix
+     * (ignoring case), best rated first.
+     */
+    int[] findRowsByNamePrefix(String prefix, int maxMatches) {
+        byte[] key = normalizeName(prefix);
+
+        // Range of name order indexes [from, to) with the given prefix
+        int from = 0;
+        int to = numRows;
+        for (int hi = numRows; from < hi; ) {
+            int mid = (from + hi) >>> 1;
+            if (comparePrefix(nameOrder.get(mid), key) < 0) {
+                from = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        for (int lo = from; lo < to; ) {
+            int mid = (lo + to) >>> 1;
+            if (comparePrefix(nameOrder.get(mid), key) <= 0) {
+                lo = mid + 1;
+            } else {
+                to = mid;
+            }
+        }
+
+        // Smallest rows in the range, kept in a max-heap
+        PriorityQueue<Integer> best = new PriorityQueue<>(maxMatches + 1, Comparator.reverseOrder());
+        int i = from;
+        while (i < to) {
+            int blockEnd = Math.min((i / NAME_BLOCK_SIZE + 1) * NAME_BLOCK_SIZE, to);
+            boolean fullBlock = i % NAME_BLOCK_SIZE == 0 && blockEnd - i == NAME_BLOCK_SIZE;
+            if (fullBlock && best.size() == maxMatches && nameBlockMins.get(i / NAME_BLOCK_SIZE) > best.peek()) {
+                i = blockEnd;
+                continue;
+            }
+            for (; i < blockEnd; i++) {
+                int row = nameOrder.get(i);
+                if (best.size() < maxMatches) {
+                    best.add(row);
+                } else if (row < best.peek()) {
+                    best.poll();
+                    best.add(row);
+                }
+            }
+        }
+
+        int[] rows = new int[best.size()];
+        for (int k = rows.length - 1; k >= 0; k--) {
+            rows[k] = best.poll();
+        }
+        return rows;
+    }
+
+    // Compares the normalized name of the given row with the given prefix. Names starting with the
+    // prefix compare as equal.
+    private int comparePrefix(int row, byte[] prefix) {
+        int from = normNameOffsets.get(row);
+        int length = normNameOffsets.get(row + 1) - from;
+        for (int i = 0; i < Math.min(length, prefix.length); i++) {
+            int c = Byte.compareUnsigned(normNames.get(from + i), prefix[i]);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return length < prefix.length ? -1 : 0;
+    }
+
+    private static byte[] normalizeName(String name) {
+        return name.toLowerCase(Locale.ROOT).getBytes(UTF_8);
+    }
+
+    private static int numNameBlocks(int numRows) {
+        return (numRows + NAME_BLOCK_SIZE - 1) / NAME_BLOCK_SIZE;
+    }
+
+    private String getDisplayName(int row) {
+        int from = nameOffsets.get(row);
+        byte[] bytes = new byte[nameOffsets.get(row + 1) - from];
+        names.duplicate().position(from).get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    int getListSize(SortingPolicy sortingPolicy) {
+        switch (sortingPolicy) {
+            case BY_RATING: return numRows;
+            case BY_REPUTATION: return repOrder.limit();
+            default: throw new AssertionError("Unknown sorting policy.");
+        }
+    }
+
+    // Row of the player at the given (0-based) index in the given list
+    private int getRow(int index, SortingPolicy sortingPolicy) {
+        switch (sortingPolicy) {
+            case BY_RATING: return index;
+            case BY_REPUTATION: return repOrder.get(index);
+            default: throw new AssertionError("Unknown sorting policy.");
+        }
+    }
+
+    // Thread safe, since the position and limit of the given buffer are never changed.
+    private static ByteBuffer slice(ByteBuffer data, int from, int length) {
+        ByteBuffer view = data.duplicate();
+        view.position(from);
+        view.limit(from + length);
+        return view.slice();
+    }
+
+    /**
+     * Collects the players of a snapshot and writes them to a snapshot file. Players are added in
+     * id order, and both orderings are created by sorting when the snapshot is written.
+     */
+    static class Builder {
+
+        private int numRows;
+        private int sourceMaxGameId;
+        private boolean sorted;
+        private double[] ratings = new double[16];
+        private int[] ids = new int[16];
+        private int[] reps = new int[16];
+        private int[] nameOffsets = new int[17];
+        private int[] repOrder = new int[0];
+        private int[] normNameOffsets = new int[17];
+        private ByteArrayOutputStream names = new ByteArrayOutputStream();
+        private ByteArrayOutputStream normNames = new ByteArrayOutputStream();
+
+        int getNumRows() {
+            return numRows;
+        }
+
+        void setSourceMaxGameId(int sourceMaxGameId) {
+            this.sourceMaxGameId = sourceMaxGameId;
+        }
+
+        /** Adds a player. Players should be added in id order, since ties are broken by order. */
+        void addRow(int id, String displayName, int rep, double rating) {
+            if (sorted) {
+                throw new IllegalStateException("Rows can't be added after the snapshot is written.");
+            }
+            if (numRows == ids.length) {
+                grow();
+            }
+            ratings[numRows] = rating;
+            ids[numRows] = id;
+            reps[numRows] = rep;
+            displayName = displayName != null ? displayName : "";
+            byte[] name = displayName.getBytes(UTF_8);
+            names.write(name, 0, name.length);
+            nameOffsets[numRows + 1] = names.size();
+            byte[] normName = normalizeName(displayName);
+            normNames.write(normName, 0, normName.length);
+            normNameOffsets[numRows + 1] = normNames.size();
+            numRows++;
+        }
+
+        // Reorders the rows by rating and creates the rep list. Both are sorted in descending
+        // order, with ties broken by the order in which the rows were added.
+        private void sortRows() {
+            if (sorted) {
+                return;
+            }
+            sorted = true;
+            int[] ratingPositions = PositionUpdater.positionsDescending(ratings, numRows);
+            int[] repPositions = PositionUpdater.positionsDescending(reps, numRows);
+
+            repOrder = new int[numRows];
+            int[] addedRows = new int[numRows];
+            for (int i = 0; i < numRows; i++) {
+                repOrder[repPositions[i] - 1] = ratingPositions[i] - 1;
+                addedRows[ratingPositions[i] - 1] = i;
+            }
+
+            double[] sortedRatings = new double[numRows];
+            int[] sortedIds = new int[numRows];
+            int[] sortedReps = new int[numRows];
+            for (int row = 0; row < numRows; row++) {
+                sortedRatings[row] = ratings[addedRows[row]];
+                sortedIds[row] = ids[addedRows[row]];
+                sortedReps[row] = reps[addedRows[row]];
+            }
+            ratings = sortedRatings;
+            ids = sortedIds;
+            reps = sortedReps;
+
+            byte[] nameBytes = names.toByteArray();
+            names = new ByteArrayOutputStream(nameBytes.length);
+            nameOffsets = reorderArena(nameBytes, nameOffsets, addedRows, names);
+            byte[] normNameBytes = normNames.toByteArray();
+            normNames = new ByteArrayOutputStream(normNameBytes.length);
+            normNameOffsets = reorderArena(normNameBytes, normNameOffsets, addedRows, normNames);
+        }
+
+        // Writes the strings of the given arena in the given order to out and returns the new offsets
+        private int[] reorderArena(byte[] arena, int[] offsets, int[] order, ByteArrayOutputStream out) {
+            int[] newOffsets = new int[numRows + 1];
+            for (int row = 0; row < numRows; row++) {
+                int from = offsets[order[row]];
+                out.write(arena, from, offsets[order[row] + 1] - from);
+                newOffsets[row + 1] = out.size();
+            }
+            return newOffsets;
+        }
+
+        // (player id, row) pairs packed into longs, sorted by player id
+        private long[] sortIdRows() {
+            long[] idRows = new long[numRows];
+            for (int row = 0; row < numRows; row++) {
+                idRows[row] = ((long) ids[row] << 32) | row;
+            }
+            Arrays.parallelSort(idRows);
+            return idRows;
+        }
+
+        // Rows sorted by normalized name (and by row for equal names)
+        private int[] sortNameRows() {
+            byte[] normNameBytes = normNames.toByteArray();
+
+            // Sort on the first four bytes of the names, then sort runs of equal such prefixes
+            long[] prefixRows = new long[numRows];
+            for (int row = 0; row < numRows; row++) {
+                long prefix = 0;
+                for (int i = 0; i < 4; i++) {
+                    int pos = normNameOffsets[row] + i;
+                    int b = pos < normNameOffsets[row + 1] ? normNameBytes[pos] & 0xff : 0;
+                    prefix = (prefix << 8) | b;
+                }
+                // Sign bit flipped, so that signed order of the longs is unsigned order of the bytes
+                prefixRows[row] = ((prefix << 32) | row) ^ Long.MIN_VALUE;
+            }
+            Arrays.parallelSort(prefixRows);
+
+            int[] nameRows = new int[numRows];
+            for (int i = 0; i < numRows; i++) {
+                nameRows[i] = (int) prefixRows[i];
+            }
+            Comparator<Integer> byName = (a, b) -> {
+                int c = Arrays.compareUnsigned(normNameBytes, normNameOffsets[a], normNameOffsets[a + 1],
+                                               normNameBytes, normNameOffsets[b], normNameOffsets[b + 1]);
+                return c != 0 ? c : Integer.compare(a, b);
+            };
+            for (int from = 0; from < numRows; ) {
+                int to = from + 1;
+                while (to < numRows && prefixRows[to] >>> 32 == prefixRows[from] >>> 32) {
+                    to++;
+                }
+                if (to - from > 1) {
+                    Integer[] run = new Integer[to - from];
+                    for (int i = from; i < to; i++) {
+                        run[i - from] = nameRows[i];
+                    }
+                    Arrays.sort(run, byName);
+                    for (int i = from; i < to; i++) {
+                        nameRows[i] = run[i - from];
+                    }
+                }
+                from = to;
+            }
+            return nameRows;
+        }
+
+        private void grow() {
+            int capacity = ids.length * 2;
+            ratings = Arrays.copyOf(ratings, capacity);
+            ids = Arrays.copyOf(ids, capacity);
+            reps = Arrays.copyOf(reps, capacity);
+            nameOffsets = Arrays.copyOf(nameOffsets, capacity + 1);
+            normNameOffsets = Arrays.copyOf(normNameOffsets, capacity + 1);
+        }
+
+        void writeTo(FileChannel channel, long generation) throws IOException {
+            channel.position(HEADER_BYTES);
+            int crc = writeBody(Channels.newOutputStream(channel));
+            channel.write(header(generation, crc), 0);
+        }
+
+        private ByteBuffer header(long generation, int crc) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC);
+            header.putInt(FORMAT_VERSION);
+            header.putLong(generation);
+            header.putInt(sourceMaxGameId);
+            header.putInt(crc);
+            header.putInt(numRows);
+            header.putInt(repOrder.length);
+            header.putInt(names.size());
+            header.putInt(normNames.size());
+            return header.flip();
+        }
+
+        // Writes everything after the header and returns the CRC32 of it
+        private int writeBody(OutputStream out) throws IOException {
+            sortRows();
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(out), new CRC32());
+            DataOutputStream dos = new DataOutputStream(checked);
+            for (int row = 0; row < numRows; row++) {
+                dos.writeDouble(ratings[row]);
+            }
+            writeInts(dos, ids, numRows);
+            writeInts(dos, reps, numRows);
+            writeInts(dos, nameOffsets, numRows + 1);
+            writeInts(dos, repOrder, repOrder.length);
+
+            int[] repIndexes = new int[numRows];
+            Arrays.fill(repIndexes, -1);
+            for (int i = 0; i < repOrder.length; i++) {
+                repIndexes[repOrder[i]] = i;
+            }
+            writeInts(dos, repIndexes, numRows);
+
+            long[] idRows = sortIdRows();
+            for (long idRow : idRows) {
+                dos.writeInt((int) (idRow >>> 32));
+            }
+            for (long idRow : idRows) {
+                dos.writeInt((int) idRow);
+            }
+
+            writeInts(dos, normNameOffsets, numRows + 1);
+            int[] nameRows = sortNameRows();
+            writeInts(dos, nameRows, numRows);
+            for (int block = 0; block < numNameBlocks(numRows); block++) {
+                int min = Integer.MAX_VALUE;
+                for (int i = block * NAME_BLOCK_SIZE; i < Math.min((block + 1) * NAME_BLOCK_SIZE, numRows); i++) {
+                    min = Math.min(min, nameRows[i]);
+                }
+                dos.writeInt(min);
+            }
+
+            names.writeTo(dos);
+            normNames.writeTo(dos);
+            dos.flush();
+            return (int) checked.getChecksum().getValue();
+        }
+
+        // Snapshot (of generation 0) backed by the heap rather than a file
+        PlayerListSnapshot build() {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try {
+                int crc = writeBody(body);
+                ByteBuffer data = ByteBuffer.allocate(HEADER_BYTES + body.size());
+                data.put(header(0, crc));
+                data.put(body.toByteArray());
+                return new PlayerListSnapshot(data.flip());
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        private static void writeInts(DataOutputStream dos, int[] values, int n) throws IOException {
+            for (int i = 0; i < n; i++) {
+                dos.writeInt(values[i]);
+            }
+        }
+    }
+}
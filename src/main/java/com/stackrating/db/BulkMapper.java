@@ -0,0 +1,16 @@
+package com.stackrating.db;
+
+/** Staging tables used by {@link com.stackrating.storage.BulkWriter}. */
+public interface BulkMapper {
+    void createEntryRatingDeltaStaging();
+    void truncateEntryRatingDeltaStaging();
+    void applyEntryRatingDeltaStaging();
+
+    void createPlayerRatingStaging();
+    void truncatePlayerRatingStaging();
+    void applyPlayerRatingStaging();
+
+    void createPlayerRepPositionStaging();
+    void truncatePlayerRepPositionStaging();
+    void applyPlayerRepPositionStaging();
+}
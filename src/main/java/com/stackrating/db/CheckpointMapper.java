@@ -0,0 +1,7 @@
+package com.stackrating.db;
+
+import org.apache.ibatis.annotations.Param;
+
+public interface CheckpointMapper {
+    void deleteCheckpointsAfter(@Param("gameId") int gameId);
+}
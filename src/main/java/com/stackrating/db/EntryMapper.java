@@ -3,6 +3,7 @@ package com.stackrating.db;
 import com.stackrating.model.Entry;
 import com.stackrating.model.TimeDataPoint;
 import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.cursor.Cursor;
 
 import java.util.List;
 
@@ -14,8 +15,8 @@ public interface EntryMapper {
     List<TimeDataPoint> getRatingDeltas(@Param("userId") int userId);
     List<Entry> getEntriesForGame(@Param("gameId") int gameId);
     List<Entry> getEntriesForGames(@Param("fromGameId") int fromGameId, @Param("toGameId") int toGameId);
+    int countEntriesFrom(@Param("fromGameId") int fromGameId);
+    Cursor<Entry> streamEntriesFrom(@Param("fromGameId") int fromGameId);
 
-    Entry getEntry(@Param("id") int id, @Param("gameId") int gameId);
-    void insertEntry(Entry entry);
-    void updateEntry(Entry entry);
+    List<Integer> upsertEntries(@Param("entries") List<Entry> entries);
 }
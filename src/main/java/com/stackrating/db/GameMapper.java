@@ -4,13 +4,14 @@ import com.stackrating.model.Game;
 import org.apache.ibatis.annotations.Param;
 
 import java.sql.Timestamp;
+import java.util.List;
 
 public interface GameMapper {
     Game getGame(@Param("id") int id);
-    void insertGame(Game game);
-    void updateGame(Game game);
+    void upsertGames(@Param("games") List<Game> games);
     int getMaxGameId();
     int getCycleStartGameId();
+    int countGamesFrom(@Param("fromGameId") int fromGameId);
     void batchUpdateLastVisit(@Param("from") Timestamp from,
                               @Param("to") Timestamp to,
                               @Param("lastVisit") Timestamp lastVisit);
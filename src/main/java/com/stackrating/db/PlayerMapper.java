@@ -1,7 +1,8 @@
 package com.stackrating.db;
 
 import com.stackrating.model.Player;
-import com.stackrating.storage.RatingUpdater.PlayerStateTracker.PlayerState;
+import com.stackrating.storage.PlayerStateTracker.PlayerState;
+import com.stackrating.storage.PositionUpdater.PlayerRow;
 import org.apache.ibatis.annotations.Param;
 import org.apache.ibatis.cursor.Cursor;
 
@@ -10,18 +11,11 @@ import java.util.List;
 public interface PlayerMapper {
     Player getPlayer(int id);
     int getNumPlayers();
-    void insertPlayer(Player p);
-    void updatePlayer(Player p);
-    void updateRating(@Param("playerId") int playerId, @Param("rating") double rating);
-    void updateNameAndRep(
-            @Param("playerId") int playerId,
-            @Param("displayName") String displayName,
-            @Param("rep") int rep);
-    void updateRatingPositions(@Param("fromId") int fromId, @Param("toId") int toId);
+    void upsertPlayers(@Param("players") List<Player> players);
+    void updateNamesAndReps(@Param("players") List<Player> players);
     int getMaxPlayerId();
-    Cursor<Integer> getAllPlayerIds(@Param("orderBy") String orderBy);
-    List<Player> getPlayers(@Param("ids") List<Integer> ids);
-    void updateRepPositions(@Param("fromId") int fromId, @Param("toId") int toId);
+    Cursor<Player> getAllPlayers();
+    Cursor<PlayerRow> streamPlayerRows();
     List<PlayerState> getPlayerStates(
             @Param("fromGameId") int fromGameId,
             @Param("playerIds") List<Integer> playerIds);
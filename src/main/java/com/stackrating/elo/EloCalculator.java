@@ -1,14 +1,70 @@
 package com.stackrating.elo;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.stream.DoubleStream;
 
 public class EloCalculator {
 
+    // DoubleStream.average() subtracts the compensation in its final step on newer JDKs, but added
+    // it on older ones. The kernel does whatever this JDK does, so that its deltas stay identical.
+    private final static boolean SUBTRACT_COMPENSATION =
+            DoubleStream.of(1, 0x1p-53).average().getAsDouble() == 0.5;
+
     // Compute rating deltas for all players
     public static double[] computeRatingDeltas(List<PlayerInfo> results) {
-        return results.stream()
-                      .mapToDouble(result -> computeRatingDelta(result, results))
-                      .toArray();
+        int n = results.size();
+        int[] gamesPlayed = new int[n];
+        double[] ratings = new double[n];
+        double[] scores = new double[n];
+        for (int i = 0; i < n; i++) {
+            gamesPlayed[i] = results.get(i).gamesPlayed;
+            ratings[i] = results.get(i).ratingBefore;
+            scores[i] = results.get(i).score;
+        }
+        double[] deltas = new double[n];
+        computeRatingDeltas(n, gamesPlayed, ratings, scores, deltas);
+        assert Arrays.equals(deltas, results.stream()
+                                            .mapToDouble(result -> computeRatingDelta(result, results))
+                                            .toArray())
+                : "Batch kernel differs from computeRatingDelta";
+        return deltas;
+    }
+
+    /**
+     * Compute rating deltas for the first n players given as parallel arrays, and store them in
+     * deltas. Same as {@link #computeRatingDeltas(List)} (bit for bit), but without allocating
+     * anything.
+     */
+    public static void computeRatingDeltas(int n,
+                                           int[] gamesPlayed,
+                                           double[] ratings,
+                                           double[] scores,
+                                           double[] deltas) {
+        if (n < 2) {
+            Arrays.fill(deltas, 0, n, 0);
+            return;  // No opponents => delta = 0
+        }
+        for (int i = 0; i < n; i++) {
+            // Average of the pairwise deltas, summed in opponent order with the same compensated
+            // summation as DoubleStream.average().
+            double sum = 0;
+            double compensation = 0;
+            for (int j = 0; j < n; j++) {
+                if (j == i) {
+                    continue;
+                }
+                // Same expression as eloDelta. Deriving the expected score of j against i from
+                // the power computed for i against j changes the last bits.
+                double expected = 1.0 / (1 + Math.pow(10, (ratings[j] - ratings[i]) / 400.0));
+                double delta = maxDelta(gamesPlayed[i], gamesPlayed[j]) * (eloScore(scores[i], scores[j]) - expected);
+                double tmp = delta - compensation;
+                double velvel = sum + tmp;
+                compensation = (velvel - sum) - tmp;
+                sum = velvel;
+            }
+            deltas[i] = (SUBTRACT_COMPENSATION ? sum - compensation : sum + compensation) / (n - 1);
+        }
     }
 
     // Compute combined rating deltas (by taking average of pairwise deltas)
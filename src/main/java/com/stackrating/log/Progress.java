@@ -22,6 +22,7 @@ public class Progress {
     long lastPrintedProgress = -1;
     long sleep = 30000;
     int speedWidth = 1;
+    boolean infoLevel = false;
 
     public Progress(Logger logger, String msg, long max) {
         this.logger = logger;
@@ -31,6 +32,12 @@ public class Progress {
         this.startTime = System.currentTimeMillis();
     }
 
+    /** Log at info level rather than debug level, so that the progress shows up in the regular log. */
+    public Progress logAtInfo() {
+        infoLevel = true;
+        return this;
+    }
+
     public void incProgress(long steps) {
         setProgress(progress + steps);
     }
@@ -40,12 +47,17 @@ public class Progress {
         long now = System.currentTimeMillis();
         if (lastPrintTime + sleep < now || progress == max) {
             long stepsPerSec = 1000 * (progress - lastPrintedProgress) / (now - lastPrintTime);
-            logger.debug(format("%s @ %" + speedWidth + "d/s, %3.0f%%, est. time left: %s%s",
-                                msg,
-                                stepsPerSec,
-                                100.0 * progress / max,
-                                timeLeft(now),
-                                Stream.of(extras).collect(joining(", ", ", ", ""))));
+            String line = format("%s @ %" + speedWidth + "d/s, %3.0f%%, est. time left: %s%s",
+                                 msg,
+                                 stepsPerSec,
+                                 100.0 * progress / max,
+                                 timeLeft(now),
+                                 Stream.of(extras).collect(joining(", ", ", ", "")));
+            if (infoLevel) {
+                logger.info(line);
+            } else {
+                logger.debug(line);
+            }
             lastPrintedProgress = progress;
             lastPrintTime = now;
             speedWidth = Math.max(speedWidth, String.valueOf(stepsPerSec).length());
@@ -69,6 +69,10 @@ public class Entry {
         return userDisplayName;
     }
 
+    public Timestamp getGamePostTime() {
+        return gamePostTime;
+    }
+
     public boolean isPostedWithin90daysOfGamePosting() {
         return (postTime.getTime() - gamePostTime.getTime()) < (90 * 24 * 60 * 60 * 1000L);
 //        return postTime.isBefore(gamePostTime.plus(90, ChronoUnit.DAYS));
@@ -9,7 +9,9 @@ import com.stackrating.log.Progress;
 import com.stackrating.model.Entry;
 import com.stackrating.model.Game;
 import com.stackrating.model.Player;
+import com.stackrating.storage.IngestBatch;
 import com.stackrating.storage.NonThrowingCloseable;
+import com.stackrating.storage.PlayerWriteBuffer;
 import com.stackrating.storage.Storage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,7 +22,7 @@ import java.sql.Timestamp;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.Date;
-import java.util.Optional;
+import java.util.OptionalInt;
 import java.util.Properties;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -47,6 +49,12 @@ public class SOContentDownloader {
     private Game lastProcessed;
     private int lastUserPage = 0;
 
+    // Name and rep updates of players, flushed after each page
+    private final PlayerWriteBuffer playerWrites = new PlayerWriteBuffer();
+
+    // Lowest id of the games whose entries changed since the last reset. Integer.MAX_VALUE if none.
+    private int firstChangedGameId = Integer.MAX_VALUE;
+
     public SOContentDownloader(Storage storage) throws IOException {
         this.storage = storage;
         
@@ -66,6 +74,8 @@ public class SOContentDownloader {
         Progress progress = new Progress(logger,
                                          "Refreshing/downloading questions...",
                                          Duration.between(from, visitTime).toHours());
+        long rowsIngested = 0;
+        long ingestNanos = 0;
         outer: while (!Main.shutdownRequested) {
             apiLock.acquire();
             PagedList<Question> questions = queryFactory
@@ -90,11 +100,21 @@ public class SOContentDownloader {
 
             try (NonThrowingCloseable c = storage.openSession()) {
 
+                // The whole page is written in bulk
+                IngestBatch batch = new IngestBatch();
                 for (Question q : questions) {
-                    lastProcessed = processQuestion(q, visitTime);
-                    if (Main.shutdownRequested) {
-                        break outer;
-                    }
+                    lastProcessed = processQuestion(q, visitTime, batch);
+                }
+                long ingestStart = System.nanoTime();
+                rowsIngested += playerWrites.size();
+                storage.flush(playerWrites);
+                for (int changedGameId : storage.ingest(batch)) {
+                    firstChangedGameId = Math.min(firstChangedGameId, changedGameId);
+                }
+                ingestNanos += System.nanoTime() - ingestStart;
+                rowsIngested += batch.getNumRows();
+                if (Main.shutdownRequested) {
+                    break outer;
                 }
 
                 // Some games may have been deleted. These games will not be returned in this query,
@@ -111,7 +131,9 @@ public class SOContentDownloader {
                 t = nextT;
                 progress.setProgress(Duration.between(from, t).toHours(),
                         "quota: " + questions.getQuotaRemaining(),
-                        "time: " + formatInstant(t));
+                        "time: " + formatInstant(t),
+                        "ingest: " + rowsIngested * 1_000_000_000 / Math.max(1, ingestNanos) + " rows/s",
+                        "coalesced player writes: " + playerWrites.getNumCoalescedWrites());
             }
 
             if (questions.getQuotaRemaining() < MIN_QUOTA) {
@@ -149,11 +171,12 @@ public class SOContentDownloader {
 
             try (NonThrowingCloseable c = storage.openSession()) {
                 for (User user : users) {
-                    storage.updateNameAndRep(
+                    playerWrites.update(
                             (int) user.getUserId(),
                             user.getDisplayName(),
                             (int) user.getReputation());
                 }
+                storage.flush(playerWrites);
             }
 
             if (users.hasMore()) {
@@ -171,9 +194,38 @@ public class SOContentDownloader {
         logger.info("Remaining quota after refreshPlayers: " + lastSeenQuota);
     }
 
+    /** Writes pending player writes, if any. Should be called at the end of each update cycle. */
+    public void flushPlayerWrites() {
+        if (playerWrites.size() > 0) {
+            try (NonThrowingCloseable c = storage.openSession()) {
+                storage.flush(playerWrites);
+            }
+        }
+        logger.info("Player writes: {}, coalesced: {}",
+                    playerWrites.getNumWrites(),
+                    playerWrites.getNumCoalescedWrites());
+    }
+
+    /** Returns the number of player writes that were replaced by later writes before a flush. */
+    public long getNumCoalescedPlayerWrites() {
+        return playerWrites.getNumCoalescedWrites();
+    }
+
     public int getLastSeenQuota() {
         return lastSeenQuota;
     }
+
+    /** Returns the lowest id of the games that need to be rejudged, if any. */
+    public OptionalInt getFirstChangedGameId() {
+        return firstChangedGameId == Integer.MAX_VALUE
+                ? OptionalInt.empty()
+                : OptionalInt.of(firstChangedGameId);
+    }
+
+    /** Should be called once all changed games have been rejudged. */
+    public void resetFirstChangedGameId() {
+        firstChangedGameId = Integer.MAX_VALUE;
+    }
     
     private boolean containsOnlyLastProcessed(PagedList<Question> questions) {
         return lastProcessed != null
@@ -181,14 +233,15 @@ public class SOContentDownloader {
                 && questions.get(0).getQuestionId() == lastProcessed.getId();
     }
 
-    private Game processQuestion(Question q, Instant visitTime) {
+    // Adds the game, players and entries of the given question to the given batch
+    private Game processQuestion(Question q, Instant visitTime, IngestBatch batch) {
 
         // 1. Update game
         Game game = new Game((int) q.getQuestionId(),
                              q.getTitle(),
                              Timestamp.from(q.getCreationDate().toInstant()),
                              Timestamp.from(visitTime));
-        storage.upsertGame(game);
+        batch.addGame(game);
 
         // For each answer...
         for (Answer answer : q.getAnswers()) {
@@ -199,30 +252,27 @@ public class SOContentDownloader {
                 continue;
             }
 
-            // 2. Update player
-            Optional<Player> existingPlayer = storage.findPlayer((int) owner.getUserId());
+            // 2. Update player (rating and positions of existing players are kept)
             Player player = new Player(
                     (int) owner.getUserId(),
                     owner.getDisplayName(),
                     (int) owner.getReputation(),
-                    existingPlayer.map(Player::getRating).orElse(1500.0),
-                    existingPlayer.map(Player::getRepPos).orElse(0),
-                    existingPlayer.map(Player::getRatingPos).orElse(0));
-            storage.upsertUser(player);
+                    1500.0,
+                    0,
+                    0);
+            playerWrites.upsert(player);
 
-            // 3. Find (or create) entry
+            // 3. Create or update entry (rating delta of existing entry is kept)
             short newVotes = (short) (answer.getScore() + (answer.isIsAccepted() ? 1 : 0));
-            Entry existingEntry = storage.getEntry((int) answer.getAnswerId(), game.getId());
-            Entry entry = new Entry((int) answer.getAnswerId(),
-                                    player.getId(),
-                                    game.getId(),
-                                    newVotes,
-                                    Timestamp.from(answer.getCreationDate().toInstant()),
-                                    existingEntry != null ? existingEntry.getRatingDelta() : 0,
-                                    null,
-                                    null,
-                                    null);
-            storage.upsertEntry(entry);
+            batch.addEntry(new Entry((int) answer.getAnswerId(),
+                                     player.getId(),
+                                     game.getId(),
+                                     newVotes,
+                                     Timestamp.from(answer.getCreationDate().toInstant()),
+                                     0,
+                                     null,
+                                     null,
+                                     null));
         }
         return game;
     }
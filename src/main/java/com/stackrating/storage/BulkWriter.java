@@ -0,0 +1,221 @@
+package com.stackrating.storage;
+
+import com.stackrating.db.BulkMapper;
+import org.apache.ibatis.executor.BatchResult;
+import org.apache.ibatis.session.SqlSession;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Streams rows into a temporary staging table through Postgres' COPY protocol and then applies
+ * all of them to the real table with a single UPDATE statement. For large updates this is much
+ * faster than one (batched) UPDATE statement per row. Targets that only ever receive new rows
+ * are copied straight into the real table.
+ *
+ * Note that the connection of the session can't be used for anything else between the first
+ * {@code addRow} and {@link #apply()}.
+ */
+public class BulkWriter {
+
+    private final static Logger logger = LoggerFactory.getLogger(BulkWriter.class);
+
+    // Rows are sent to the server whenever this many characters have been buffered.
+    private final static int FLUSH_THRESHOLD = 1 << 16;
+
+    public enum Target {
+        ENTRY_RATING_DELTAS("COPY entry_rating_delta_staging (id, game_id, rating_delta) FROM STDIN"),
+        PLAYER_RATINGS("COPY player_rating_staging (player_id, rating_pos, rating) FROM STDIN"),
+        PLAYER_REP_POSITIONS("COPY player_rep_pos_staging (player_id, rep_pos) FROM STDIN"),
+        PLAYER_CHECKPOINTS("COPY player_checkpoints (game_id, player_id, rating, num_games_played) FROM STDIN");
+
+        private final String copySql;
+
+        Target(String copySql) {
+            this.copySql = copySql;
+        }
+    }
+
+    private final SqlSession session;
+    private final BulkMapper bulkMapper;
+    private final Target target;
+    private final StringBuilder buffer = new StringBuilder();
+    private CopyIn copyIn;
+
+    // For throughput reporting
+    private long numRowsCopied;
+    private long copyNanos;
+    private long applyNanos;
+
+    public BulkWriter(SqlSession session, Target target) {
+        this.session = session;
+        this.bulkMapper = session.getMapper(BulkMapper.class);
+        this.target = target;
+    }
+
+    public void addRow(int a, int b, double c) {
+        ensureCopyStarted();
+        buffer.append(a).append('\t').append(b).append('\t').append(c).append('\n');
+        flushIfFull();
+    }
+
+    public void addRow(int a, int b, double c, int d) {
+        ensureCopyStarted();
+        buffer.append(a).append('\t').append(b).append('\t').append(c).append('\t').append(d).append('\n');
+        flushIfFull();
+    }
+
+    public void addRow(int a, int b) {
+        ensureCopyStarted();
+        buffer.append(a).append('\t').append(b).append('\n');
+        flushIfFull();
+    }
+
+    /**
+     * Apply all rows added so far to the target table. Returns the number of updated (or, for
+     * targets copied straight into the table, inserted) rows.
+     */
+    public int apply() {
+        if (copyIn == null) {
+            return 0;
+        }
+        long numStaged;
+        try {
+            flushBuffer();
+            long start = System.nanoTime();
+            numStaged = copyIn.endCopy();
+            copyNanos += System.nanoTime() - start;
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        } finally {
+            copyIn = null;
+        }
+        numRowsCopied += numStaged;
+
+        long copied = System.nanoTime();
+        switch (target) {
+            case ENTRY_RATING_DELTAS:
+                bulkMapper.applyEntryRatingDeltaStaging();
+                bulkMapper.truncateEntryRatingDeltaStaging();
+                break;
+            case PLAYER_RATINGS:
+                bulkMapper.applyPlayerRatingStaging();
+                bulkMapper.truncatePlayerRatingStaging();
+                break;
+            case PLAYER_REP_POSITIONS:
+                bulkMapper.applyPlayerRepPositionStaging();
+                bulkMapper.truncatePlayerRepPositionStaging();
+                break;
+            case PLAYER_CHECKPOINTS:
+                logger.debug("{}: copied {} rows in {} ms.", target, numStaged, copyNanos / 1_000_000);
+                return (int) numStaged;
+            default:
+                throw new AssertionError("Unknown bulk write target.");
+        }
+        int numUpdated = getFirstUpdateCount(session.flushStatements());
+        applyNanos += System.nanoTime() - copied;
+
+        logger.debug("{}: staged {} rows in {} ms, updated {} rows in {} ms.",
+                     target,
+                     numStaged,
+                     copyNanos / 1_000_000,
+                     numUpdated,
+                     applyNanos / 1_000_000);
+        return numUpdated;
+    }
+
+    private void ensureCopyStarted() {
+        if (copyIn != null) {
+            return;
+        }
+        switch (target) {
+            case ENTRY_RATING_DELTAS:
+                bulkMapper.createEntryRatingDeltaStaging();
+                bulkMapper.truncateEntryRatingDeltaStaging();
+                break;
+            case PLAYER_RATINGS:
+                bulkMapper.createPlayerRatingStaging();
+                bulkMapper.truncatePlayerRatingStaging();
+                break;
+            case PLAYER_REP_POSITIONS:
+                bulkMapper.createPlayerRepPositionStaging();
+                bulkMapper.truncatePlayerRepPositionStaging();
+                break;
+            case PLAYER_CHECKPOINTS:
+                // No staging table
+                break;
+            default:
+                throw new AssertionError("Unknown bulk write target.");
+        }
+        // Anything batched must be executed before the connection enters COPY mode.
+        session.flushStatements();
+        try {
+            PGConnection connection = session.getConnection().unwrap(PGConnection.class);
+            copyIn = connection.getCopyAPI().copyIn(target.copySql);
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    private void flushIfFull() {
+        if (buffer.length() >= FLUSH_THRESHOLD) {
+            try {
+                flushBuffer();
+            } catch (SQLException e) {
+                throw new StorageException(e);
+            }
+        }
+    }
+
+    private void flushBuffer() throws SQLException {
+        long start = System.nanoTime();
+        byte[] bytes = buffer.toString().getBytes(StandardCharsets.US_ASCII);
+        copyIn.writeToCopy(bytes, 0, bytes.length);
+        buffer.setLength(0);
+        copyNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Throughput of a number of bulk writes. The copy rate is the rate at which rows are sent to
+     * the server, and the apply rate the rate at which staged rows are applied to the real table.
+     */
+    public static class Throughput {
+        private long numRowsCopied;
+        private long copyNanos;
+        private long numRowsApplied;
+        private long applyNanos;
+
+        public Throughput add(BulkWriter writer) {
+            numRowsCopied += writer.numRowsCopied;
+            copyNanos += writer.copyNanos;
+            if (writer.target != Target.PLAYER_CHECKPOINTS) {
+                numRowsApplied += writer.numRowsCopied;
+                applyNanos += writer.applyNanos;
+            }
+            return this;
+        }
+
+        public String[] format() {
+            return new String[] {
+                    "copy: " + rowsPerSec(numRowsCopied, copyNanos) + " rows/s",
+                    "apply: " + rowsPerSec(numRowsApplied, applyNanos) + " rows/s"
+            };
+        }
+
+        private static long rowsPerSec(long numRows, long nanos) {
+            return numRows * 1_000_000_000 / Math.max(1, nanos);
+        }
+    }
+
+    // The apply statement is the first of the flushed statements (the truncate is the second).
+    private static int getFirstUpdateCount(List<BatchResult> results) {
+        return results.isEmpty() || results.get(0).getUpdateCounts().length == 0
+                ? 0
+                : results.get(0).getUpdateCounts()[0];
+    }
+}
@@ -0,0 +1,230 @@
+package com.stackrating.storage;
+
+import org.apache.ibatis.datasource.pooled.PooledDataSource;
+import org.apache.ibatis.io.Resources;
+import org.apache.ibatis.mapping.Environment;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.apache.ibatis.session.SqlSessionFactoryBuilder;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A named pool of connections, backed by the environment with the same name in
+ * mybatis-config.xml. The pool is configured in db.properties:
+ * <pre>
+ *     pool.NAME.size       max number of connections in use
+ *     pool.NAME.maxIdle    max number of idle connections
+ *     pool.NAME.timeoutMs  max time to wait for a connection before failing
+ * </pre>
+ * Unlike the POOLED datasource of MyBatis (which waits for a connection forever), getting a
+ * connection fails once the timeout has passed. Connections in use, idle connections and time spent
+ * waiting are tracked for the metrics.
+ */
+public class ConnectionPool {
+
+    private final String name;
+    private final int size;
+    private final long timeoutMs;
+    private final PooledDataSource pooledDataSource;
+    private final SqlSessionFactory sessionFactory;
+
+    // One permit per connection that may be in use
+    private final Semaphore permits;
+
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    ConnectionPool(String name, Properties dbProperties) throws IOException {
+        this.name = name;
+        Properties properties = new Properties();
+        properties.putAll(dbProperties);
+        properties.putIfAbsent("pool." + name + ".size", "10");
+        properties.putIfAbsent("pool." + name + ".maxIdle", "5");
+        properties.putIfAbsent("pool." + name + ".timeoutMs", "10000");
+        size = Integer.parseInt(properties.getProperty("pool." + name + ".size"));
+        timeoutMs = Long.parseLong(properties.getProperty("pool." + name + ".timeoutMs"));
+        permits = new Semaphore(size, true);
+
+        try (InputStream inputStream = Resources.getResourceAsStream("mybatis-config.xml")) {
+            sessionFactory = new SqlSessionFactoryBuilder().build(inputStream, name, properties);
+        }
+        Configuration configuration = sessionFactory.getConfiguration();
+        Environment environment = configuration.getEnvironment();
+        pooledDataSource = (PooledDataSource) environment.getDataSource();
+        configuration.setEnvironment(new Environment(name,
+                                                     environment.getTransactionFactory(),
+                                                     new MeteredDataSource()));
+    }
+
+    SqlSessionFactory getSessionFactory() {
+        return sessionFactory;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /** Returns the number of connections currently in use. */
+    public int getActiveCount() {
+        return size - permits.availablePermits();
+    }
+
+    public int getIdleCount() {
+        return pooledDataSource.getPoolState().getIdleConnectionCount();
+    }
+
+    /** Returns the number of threads waiting for a connection. */
+    public int getWaitingCount() {
+        return permits.getQueueLength();
+    }
+
+    public long getAcquisitions() {
+        return acquisitions.sum();
+    }
+
+    /** Returns the number of times no connection became available within the timeout. */
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    public double getAverageWaitMillis() {
+        long n = getAcquisitions() + getTimeouts();
+        return n == 0 ? 0 : totalWaitNanos.sum() / 1e6 / n;
+    }
+
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1e6;
+    }
+
+    private Connection getConnection(String username, String password) throws SQLException {
+        long start = System.nanoTime();
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection from pool " + name + ".", e);
+        } finally {
+            long waitNanos = System.nanoTime() - start;
+            totalWaitNanos.add(waitNanos);
+            maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+        }
+        if (!acquired) {
+            timeouts.increment();
+            throw new SQLException("No connection available from pool " + name + " within " + timeoutMs + " ms.");
+        }
+        acquisitions.increment();
+
+        Connection connection;
+        try {
+            connection = username == null
+                    ? pooledDataSource.getConnection()
+                    : pooledDataSource.getConnection(username, password);
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        return releasingPermitOnClose(connection);
+    }
+
+    // Wraps the given connection so that the permit is released when the connection is closed
+    // (i.e. returned to the underlying pool).
+    private Connection releasingPermitOnClose(Connection connection) {
+        boolean[] closed = { false };
+        return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class<?>[] { Connection.class },
+                (proxy, method, args) -> {
+                    if (method.getName().equals("close")) {
+                        synchronized (closed) {
+                            if (closed[0]) {
+                                return null;
+                            }
+                            closed[0] = true;
+                        }
+                        try {
+                            connection.close();
+                        } finally {
+                            permits.release();
+                        }
+                        return null;
+                    }
+                    try {
+                        return method.invoke(connection, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    private class MeteredDataSource implements DataSource {
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            return ConnectionPool.this.getConnection(null, null);
+        }
+
+        @Override
+        public Connection getConnection(String username, String password) throws SQLException {
+            return ConnectionPool.this.getConnection(username, password);
+        }
+
+        @Override
+        public PrintWriter getLogWriter() throws SQLException {
+            return pooledDataSource.getLogWriter();
+        }
+
+        @Override
+        public void setLogWriter(PrintWriter out) throws SQLException {
+            pooledDataSource.setLogWriter(out);
+        }
+
+        @Override
+        public void setLoginTimeout(int seconds) throws SQLException {
+            pooledDataSource.setLoginTimeout(seconds);
+        }
+
+        @Override
+        public int getLoginTimeout() throws SQLException {
+            return pooledDataSource.getLoginTimeout();
+        }
+
+        @Override
+        public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+
+        @Override
+        public <T> T unwrap(Class<T> iface) throws SQLException {
+            if (iface.isInstance(pooledDataSource)) {
+                return iface.cast(pooledDataSource);
+            }
+            throw new SQLException(getClass().getName() + " is not a wrapper for " + iface);
+        }
+
+        @Override
+        public boolean isWrapperFor(Class<?> iface) {
+            return iface.isInstance(pooledDataSource);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.stackrating.storage;
+
+import com.stackrating.model.Entry;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Entries stored column by column in primitive arrays. Entries must be added in game id order so
+ * that the entries of a game form a contiguous range.
+ */
+class EntryColumns {
+
+    private final static long NINETY_DAYS_MS = 90 * 24 * 60 * 60 * 1000L;
+
+    private int size;
+    private int[] ids;
+    private int[] gameIds;
+    private int[] playerIds;
+    private int[] votes;
+    private long[] postTimes;
+    private long[] gamePostTimes;
+
+    // Rating delta as loaded from the database, and as recomputed during the rejudge.
+    private double[] storedRatingDeltas;
+    private double[] ratingDeltas;
+
+    EntryColumns(int initialCapacity) {
+        int capacity = Math.max(16, initialCapacity);
+        ids = new int[capacity];
+        gameIds = new int[capacity];
+        playerIds = new int[capacity];
+        votes = new int[capacity];
+        postTimes = new long[capacity];
+        gamePostTimes = new long[capacity];
+        storedRatingDeltas = new double[capacity];
+        ratingDeltas = new double[capacity];
+    }
+
+    EntryColumns(List<Entry> entries) {
+        this(entries.size());
+        entries.forEach(this::add);
+    }
+
+    void add(Entry entry) {
+        if (size == ids.length) {
+            grow();
+        }
+        ids[size] = entry.getId();
+        gameIds[size] = entry.getGameId();
+        playerIds[size] = entry.getPlayerId();
+        votes[size] = entry.getVotes();
+        postTimes[size] = entry.getPostTime().getTime();
+        gamePostTimes[size] = entry.getGamePostTime().getTime();
+        storedRatingDeltas[size] = entry.getRatingDelta();
+        ratingDeltas[size] = entry.getRatingDelta();
+        size++;
+    }
+
+    private void grow() {
+        int capacity = ids.length * 2;
+        ids = Arrays.copyOf(ids, capacity);
+        gameIds = Arrays.copyOf(gameIds, capacity);
+        playerIds = Arrays.copyOf(playerIds, capacity);
+        votes = Arrays.copyOf(votes, capacity);
+        postTimes = Arrays.copyOf(postTimes, capacity);
+        gamePostTimes = Arrays.copyOf(gamePostTimes, capacity);
+        storedRatingDeltas = Arrays.copyOf(storedRatingDeltas, capacity);
+        ratingDeltas = Arrays.copyOf(ratingDeltas, capacity);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** Returns the (exclusive) end of the game of the entry at index {@code i}. */
+    int getGameEnd(int i) {
+        int end = i + 1;
+        while (end < size && gameIds[end] == gameIds[i]) {
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * Returns the index of the first entry between from (inclusive) and to (exclusive) with a game
+     * id of at least {@code gameId}, or {@code to} if there is no such entry.
+     */
+    int indexOfFirstGameFrom(int gameId, int from, int to) {
+        int i = Arrays.binarySearch(gameIds, from, to, gameId);
+        if (i < 0) {
+            return -(i + 1);
+        }
+        // Several entries may belong to the game
+        while (i > from && gameIds[i - 1] == gameId) {
+            i--;
+        }
+        return i;
+    }
+
+    int getId(int i) {
+        return ids[i];
+    }
+
+    int getGameId(int i) {
+        return gameIds[i];
+    }
+
+    int getPlayerId(int i) {
+        return playerIds[i];
+    }
+
+    int getVotes(int i) {
+        return votes[i];
+    }
+
+    boolean isPostedWithin90daysOfGamePosting(int i) {
+        return (postTimes[i] - gamePostTimes[i]) < NINETY_DAYS_MS;
+    }
+
+    double getRatingDelta(int i) {
+        return ratingDeltas[i];
+    }
+
+    void setRatingDelta(int i, double ratingDelta) {
+        ratingDeltas[i] = ratingDelta;
+    }
+
+    /** Reverts the rating delta to the stored one if they differ by at most epsilon. */
+    void keepStoredRatingDeltaIfWithin(int i, double epsilon) {
+        if (Math.abs(ratingDeltas[i] - storedRatingDeltas[i]) <= epsilon) {
+            ratingDeltas[i] = storedRatingDeltas[i];
+        }
+    }
+
+    boolean isRatingDeltaChanged(int i) {
+        return ratingDeltas[i] != storedRatingDeltas[i];
+    }
+}
@@ -0,0 +1,61 @@
+package com.stackrating.storage;
+
+import com.stackrating.model.Entry;
+import com.stackrating.model.Game;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Games and entries of a page of downloaded questions, written in bulk by
+ * {@link Storage#ingest(IngestBatch)}. Rows are deduplicated by key (the last one added wins),
+ * since a row can only be upserted once per statement. Players are written through a
+ * {@link PlayerWriteBuffer}.
+ */
+public class IngestBatch {
+
+    private final Map<Integer, Game> games = new LinkedHashMap<>();
+    private final Map<Long, Entry> entries = new LinkedHashMap<>();
+
+    public void addGame(Game game) {
+        games.put(game.getId(), game);
+    }
+
+    public void addEntry(Entry entry) {
+        entries.put(((long) entry.getGameId() << 32) | entry.getId(), entry);
+    }
+
+    /** Returns the number of rows to write. */
+    public int getNumRows() {
+        return games.size() + entries.size();
+    }
+
+    Collection<Game> getGames() {
+        return games.values();
+    }
+
+    Collection<Entry> getEntries() {
+        return entries.values();
+    }
+
+    // Splits the given rows into lists of at most chunkSize rows (to stay below the limit on the
+    // number of parameters of a statement).
+    static <T> List<List<T>> chunks(Collection<T> rows, int chunkSize) {
+        List<List<T>> chunks = new ArrayList<>();
+        List<T> chunk = new ArrayList<>(chunkSize);
+        for (T row : rows) {
+            if (chunk.size() == chunkSize) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>(chunkSize);
+            }
+            chunk.add(row);
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+}
@@ -0,0 +1,210 @@
+package com.stackrating.storage;
+
+/**
+ * Keeps track of the rating and number of games played for each player seen during a rating
+ * recalc cycle. Since a full recalc involves millions of players, the states are kept in an open
+ * addressing hash table (linear probing) over parallel primitive arrays rather than in a map of
+ * objects.
+ */
+public class PlayerStateTracker {
+
+    // State of a player as loaded from the database.
+    public static class PlayerState {
+        public int playerId;
+        public int numGamesPlayed;
+        public double currentRating;
+
+        public PlayerState(int playerId, int numGamesPlayed, double currentRating) {
+            this.playerId = playerId;
+            this.numGamesPlayed = numGamesPlayed;
+            this.currentRating = currentRating;
+        }
+    }
+
+    /** States of the players that played since the previous checkpoint, as of before game gameId. */
+    public static class Checkpoint {
+        public final int gameId;
+        private final int[] playerIds;
+        private final int[] numGamesPlayed;
+        private final double[] ratings;
+
+        Checkpoint(int gameId, int[] playerIds, int[] numGamesPlayed, double[] ratings) {
+            this.gameId = gameId;
+            this.playerIds = playerIds;
+            this.numGamesPlayed = numGamesPlayed;
+            this.ratings = ratings;
+        }
+
+        public int size() {
+            return playerIds.length;
+        }
+
+        public int getPlayerId(int i) {
+            return playerIds[i];
+        }
+
+        public int getNumGamesPlayed(int i) {
+            return numGamesPlayed[i];
+        }
+
+        public double getRating(int i) {
+            return ratings[i];
+        }
+    }
+
+    public final static double INITIAL_RATING = 1500;
+
+    // Marks a free slot. Stack Overflow user ids are positive.
+    private final static int FREE = 0;
+
+    private int[] playerIds;
+    private int[] numGamesPlayed;
+    private double[] ratings;
+    private boolean[] playedSinceCheckpoint;
+    private int size;
+
+    public PlayerStateTracker() {
+        allocate(1 << 16);
+    }
+
+    public boolean isTracked(int playerId) {
+        return find(playerId) != -1;
+    }
+
+    public int getNumTrackedPlayers() {
+        return size;
+    }
+
+    public double getRating(int playerId) {
+        int slot = find(playerId);
+        return slot != -1 ? ratings[slot] : INITIAL_RATING;
+    }
+
+    public int getNumGamesPlayed(int playerId) {
+        int slot = find(playerId);
+        return slot != -1 ? numGamesPlayed[slot] : 0;
+    }
+
+    public void incGamesPlayed(int playerId) {
+        int slot = ensureTracked(playerId);
+        numGamesPlayed[slot]++;
+        playedSinceCheckpoint[slot] = true;
+    }
+
+    public void addRatingDelta(int playerId, double ratingDelta) {
+        ratings[ensureTracked(playerId)] += ratingDelta;
+    }
+
+    public void initialize(PlayerState ps) {
+        int slot = ensureTracked(ps.playerId);
+        numGamesPlayed[slot] = ps.numGamesPlayed;
+        ratings[slot] = ps.currentRating;
+    }
+
+    /** Start tracking a player that hasn't played any games (if not already tracked). */
+    public void initialize(int playerId) {
+        ensureTracked(playerId);
+    }
+
+    /**
+     * Returns the states of all players that played since the previous checkpoint. The caller
+     * must make sure that exactly the games before gameId have been judged.
+     */
+    public Checkpoint checkpoint(int gameId) {
+        int count = 0;
+        for (boolean played : playedSinceCheckpoint) {
+            if (played) {
+                count++;
+            }
+        }
+        int[] ids = new int[count];
+        int[] games = new int[count];
+        double[] rs = new double[count];
+        for (int slot = 0, n = 0; n < count; slot++) {
+            if (playedSinceCheckpoint[slot]) {
+                ids[n] = playerIds[slot];
+                games[n] = numGamesPlayed[slot];
+                rs[n] = ratings[slot];
+                playedSinceCheckpoint[slot] = false;
+                n++;
+            }
+        }
+        return new Checkpoint(gameId, ids, games, rs);
+    }
+
+    public void dispose() {
+        playerIds = null;
+        numGamesPlayed = null;
+        ratings = null;
+        playedSinceCheckpoint = null;
+        size = 0;
+    }
+
+    private int ensureTracked(int playerId) {
+        if (playerId == FREE) {
+            throw new IllegalArgumentException("Invalid player id: " + playerId);
+        }
+        int slot = slotOf(playerId);
+        if (playerIds[slot] == playerId) {
+            return slot;
+        }
+
+        // Keep load factor below 1/2 to keep probe sequences short.
+        if (2 * (size + 1) > playerIds.length) {
+            rehash();
+            slot = slotOf(playerId);
+        }
+        playerIds[slot] = playerId;
+        numGamesPlayed[slot] = 0;
+        ratings[slot] = INITIAL_RATING;
+        playedSinceCheckpoint[slot] = false;
+        size++;
+        return slot;
+    }
+
+    /** Returns the slot of the given player, or -1 if the player isn't tracked. */
+    private int find(int playerId) {
+        int slot = slotOf(playerId);
+        return playerId != FREE && playerIds[slot] == playerId ? slot : -1;
+    }
+
+    /** Returns the slot of the given player, or the free slot where it would be inserted. */
+    private int slotOf(int playerId) {
+        int mask = playerIds.length - 1;
+        int slot = hash(playerId) & mask;
+        while (playerIds[slot] != FREE && playerIds[slot] != playerId) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash() {
+        int[] oldPlayerIds = playerIds;
+        int[] oldNumGamesPlayed = numGamesPlayed;
+        double[] oldRatings = ratings;
+        boolean[] oldPlayedSinceCheckpoint = playedSinceCheckpoint;
+        allocate(oldPlayerIds.length * 2);
+        for (int oldSlot = 0; oldSlot < oldPlayerIds.length; oldSlot++) {
+            if (oldPlayerIds[oldSlot] != FREE) {
+                int slot = slotOf(oldPlayerIds[oldSlot]);
+                playerIds[slot] = oldPlayerIds[oldSlot];
+                numGamesPlayed[slot] = oldNumGamesPlayed[oldSlot];
+                ratings[slot] = oldRatings[oldSlot];
+                playedSinceCheckpoint[slot] = oldPlayedSinceCheckpoint[oldSlot];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        playerIds = new int[capacity];
+        numGamesPlayed = new int[capacity];
+        ratings = new double[capacity];
+        playedSinceCheckpoint = new boolean[capacity];
+    }
+
+    // Player ids are roughly sequential, so spread them out before masking.
+    private static int hash(int playerId) {
+        int h = playerId * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,91 @@
+package com.stackrating.storage;
+
+import com.stackrating.model.Player;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write-behind buffer for the names and reps of players, used during an update cycle. Writes are
+ * keyed by player id and the last write wins, so a player seen many times between two flushes is
+ * only written once. Flushed by {@link Storage#flush(PlayerWriteBuffer)}.
+ */
+public class PlayerWriteBuffer {
+
+    private static class PendingWrite {
+        Player player;
+        boolean insertIfMissing;
+
+        PendingWrite(Player player, boolean insertIfMissing) {
+            this.player = player;
+            this.insertIfMissing = insertIfMissing;
+        }
+    }
+
+    private final Map<Integer, PendingWrite> pending = new LinkedHashMap<>();
+    private volatile long numWrites;
+    private volatile long numCoalescedWrites;
+
+    /** Creates the player if it doesn't exist, or updates its name and rep. */
+    public void upsert(Player player) {
+        write(player, true);
+    }
+
+    /** Updates the name and rep of the player if the player exists. */
+    public void update(int playerId, String displayName, int rep) {
+        write(new Player(playerId, displayName, rep, 1500.0, 0, 0), false);
+    }
+
+    private void write(Player player, boolean insertIfMissing) {
+        numWrites++;
+        PendingWrite previous = pending.get(player.getId());
+        if (previous == null) {
+            pending.put(player.getId(), new PendingWrite(player, insertIfMissing));
+        } else {
+            numCoalescedWrites++;
+            previous.player = player;
+            previous.insertIfMissing |= insertIfMissing;
+        }
+    }
+
+    /** Returns the number of players with pending writes. */
+    public int size() {
+        return pending.size();
+    }
+
+    /** Returns the number of writes to the buffer. */
+    public long getNumWrites() {
+        return numWrites;
+    }
+
+    /** Returns the number of writes that replaced a pending write, i.e. that were never flushed. */
+    public long getNumCoalescedWrites() {
+        return numCoalescedWrites;
+    }
+
+    // Pending writes of players that should be created if missing
+    List<Player> getUpserts() {
+        return getPending(true);
+    }
+
+    // Pending writes of players that should only be updated
+    List<Player> getUpdates() {
+        return getPending(false);
+    }
+
+    void clear() {
+        pending.clear();
+    }
+
+    private List<Player> getPending(boolean insertIfMissing) {
+        List<Player> players = new ArrayList<>();
+        for (PendingWrite write : pending.values()) {
+            if (write.insertIfMissing == insertIfMissing) {
+                players.add(write.player);
+            }
+        }
+        return players;
+    }
+}
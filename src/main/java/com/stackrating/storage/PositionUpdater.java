@@ -0,0 +1,202 @@
+package com.stackrating.storage;
+
+import com.stackrating.db.PlayerMapper;
+import com.stackrating.log.Progress;
+import org.apache.ibatis.cursor.Cursor;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static com.stackrating.storage.BulkWriter.Target.PLAYER_RATINGS;
+import static com.stackrating.storage.BulkWriter.Target.PLAYER_REP_POSITIONS;
+
+/**
+ * Computes the rating and rep positions of all players in memory, in one pass over the players
+ * table, and writes back the positions that changed.
+ *
+ * Players are ordered like in the player lists: by rating (or rep) descending, then by id. The
+ * position of a player is its 1-based index in that order.
+ */
+public class PositionUpdater {
+
+    private final static Logger logger = LoggerFactory.getLogger(PositionUpdater.class);
+
+    // Row of the players table as needed for position computations.
+    public static class PlayerRow {
+        public int id;
+        public double rating;
+        public int rep;
+        public int ratingPos;
+        public int repPos;
+
+        public PlayerRow(int id, double rating, int rep, int ratingPos, int repPos) {
+            this.id = id;
+            this.rating = rating;
+            this.rep = rep;
+            this.ratingPos = ratingPos;
+            this.repPos = repPos;
+        }
+    }
+
+    private final SqlSessionFactory sessionFactory;
+    private final SqlSession session;
+
+    // Columns of all players, in player id order.
+    private int size;
+    private int[] ids;
+    private double[] ratings;
+    private int[] reps;
+    private int[] ratingPositions;
+    private int[] repPositions;
+
+    PositionUpdater(SqlSessionFactory sessionFactory, SqlSession session) {
+        this.sessionFactory = sessionFactory;
+        this.session = session;
+    }
+
+    /**
+     * Writes the ratings of the players tracked by the given tracker, along with the rating
+     * positions of all players. Ratings that changed by at most epsilon are kept as they are. Only
+     * rows where the rating or rating position changed are written.
+     */
+    void updateRatingsAndPositions(PlayerStateTracker playerStates, double epsilon) {
+        loadPlayers();
+
+        double[] newRatings = new double[size];
+        for (int i = 0; i < size; i++) {
+            newRatings[i] = ratings[i];
+            if (playerStates.isTracked(ids[i])) {
+                double rating = playerStates.getRating(ids[i]);
+                if (Math.abs(rating - ratings[i]) > epsilon) {
+                    newRatings[i] = rating;
+                }
+            }
+        }
+        int[] newPositions = positionsDescending(newRatings, size);
+
+        Progress progress = new Progress(logger, "Staging ratings and rating positions...", size);
+        BulkWriter writer = new BulkWriter(session, PLAYER_RATINGS);
+        int numChanged = 0;
+        for (int i = 0; i < size; i++) {
+            if (newRatings[i] != ratings[i] || newPositions[i] != ratingPositions[i]) {
+                writer.addRow(ids[i], newPositions[i], newRatings[i]);
+                numChanged++;
+            }
+            progress.incProgress(1);
+        }
+        writer.apply();
+        logger.info("Player ratings and positions written: {}, skipped (unchanged): {} ({})",
+                    numChanged,
+                    size - numChanged,
+                    String.join(", ", new BulkWriter.Throughput().add(writer).format()));
+    }
+
+    /** Writes the rep positions of all players whose rep position changed. */
+    void updateRepPositions() {
+        loadPlayers();
+
+        int[] newPositions = positionsDescending(reps, size);
+
+        BulkWriter writer = new BulkWriter(session, PLAYER_REP_POSITIONS);
+        int numChanged = 0;
+        for (int i = 0; i < size; i++) {
+            if (newPositions[i] != repPositions[i]) {
+                writer.addRow(ids[i], newPositions[i]);
+                numChanged++;
+            }
+        }
+        writer.apply();
+        logger.info("Rep position changed for {} out of {} players ({}).",
+                    numChanged,
+                    size,
+                    String.join(", ", new BulkWriter.Throughput().add(writer).format()));
+    }
+
+    private void loadPlayers() {
+        int numPlayers = session.getMapper(PlayerMapper.class).getNumPlayers();
+        ids = new int[numPlayers];
+        ratings = new double[numPlayers];
+        reps = new int[numPlayers];
+        ratingPositions = new int[numPlayers];
+        repPositions = new int[numPlayers];
+        size = 0;
+
+        Progress progress = new Progress(logger, "Loading players...", numPlayers);
+
+        // Postgres only streams results within a transaction (see RatingUpdater.loadEntries).
+        try (SqlSession streamingSession = sessionFactory.openSession(false);
+             Cursor<PlayerRow> cursor = streamingSession.getMapper(PlayerMapper.class).streamPlayerRows()) {
+            for (PlayerRow row : cursor) {
+                // Players may have been added since they were counted
+                if (size == ids.length) {
+                    grow();
+                }
+                ids[size] = row.id;
+                ratings[size] = row.rating;
+                reps[size] = row.rep;
+                ratingPositions[size] = row.ratingPos;
+                repPositions[size] = row.repPos;
+                size++;
+                progress.incProgress(1);
+            }
+        } catch (IOException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    private void grow() {
+        int capacity = Math.max(16, ids.length * 2);
+        ids = Arrays.copyOf(ids, capacity);
+        ratings = Arrays.copyOf(ratings, capacity);
+        reps = Arrays.copyOf(reps, capacity);
+        ratingPositions = Arrays.copyOf(ratingPositions, capacity);
+        repPositions = Arrays.copyOf(repPositions, capacity);
+    }
+
+    /**
+     * Returns the 1-based position of each of the first n keys when sorted in descending order.
+     * Ties are broken by index.
+     */
+    public static int[] positionsDescending(double[] keys, int n) {
+        // Doubles and indexes don't fit in one long together, so sort on the rank of each key
+        // among the distinct keys instead.
+        double[] distinct = Arrays.copyOf(keys, n);
+        Arrays.parallelSort(distinct);
+        int numDistinct = 0;
+        for (int i = 0; i < n; i++) {
+            if (numDistinct == 0 || distinct[i] != distinct[numDistinct - 1]) {
+                distinct[numDistinct++] = distinct[i];
+            }
+        }
+
+        long[] order = new long[n];
+        for (int i = 0; i < n; i++) {
+            long rankDescending = numDistinct - 1 - Arrays.binarySearch(distinct, 0, numDistinct, keys[i]);
+            order[i] = (rankDescending << 32) | i;
+        }
+        return positionsOf(order);
+    }
+
+    /** Same as {@link #positionsDescending(double[], int)} for int keys. */
+    public static int[] positionsDescending(int[] keys, int n) {
+        long[] order = new long[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = (-(long) keys[i] << 32) | i;
+        }
+        return positionsOf(order);
+    }
+
+    // Sorts (key, index) pairs packed into longs and returns the position of each index.
+    private static int[] positionsOf(long[] order) {
+        Arrays.parallelSort(order);
+        int[] positions = new int[order.length];
+        for (int k = 0; k < order.length; k++) {
+            positions[(int) order[k]] = k + 1;
+        }
+        return positions;
+    }
+}
@@ -1,229 +1,540 @@
 package com.stackrating.storage;
 
+import com.stackrating.db.CheckpointMapper;
 import com.stackrating.db.EntryMapper;
 import com.stackrating.db.GameMapper;
 import com.stackrating.db.PlayerMapper;
 import com.stackrating.elo.EloCalculator;
 import com.stackrating.log.Progress;
 import com.stackrating.model.Entry;
+import org.apache.ibatis.cursor.Cursor;
+import org.apache.ibatis.session.ExecutorType;
 import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
 
+import static com.stackrating.storage.BulkWriter.Target.ENTRY_RATING_DELTAS;
+import static com.stackrating.storage.BulkWriter.Target.PLAYER_CHECKPOINTS;
 import static com.stackrating.storage.PagingIterator.getPages;
-import static java.util.stream.Collectors.*;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 public class RatingUpdater {
 
     private final static Logger logger = LoggerFactory.getLogger(RatingUpdater.class);
 
+    // Number of game ids per window in the windowed modes.
+    private final static int WINDOW_SIZE = 1000;
+
+    // Approximate number of entries per chunk of games scheduled at once in the in-memory mode.
+    private final static int CHUNK_SIZE = 100000;
+
+    private final SqlSessionFactory sessionFactory;
     private final SqlSession session;
     private final PlayerMapper playerMapper;
     private final GameMapper gameMapper;
     private final EntryMapper entryMapper;
+    private final CheckpointMapper checkpointMapper;
     private final PlayerStateTracker playerStates;
-
-    public RatingUpdater(SqlSession session) {
+    private final ForkJoinPool judgePool;
+    private final WaveScheduler scheduler;
+
+    // Player states are checkpointed before every game id divisible by this (0 = never).
+    private final int checkpointInterval;
+
+    // Recomputed rating deltas (and ratings) within this distance from the stored ones are
+    // considered unchanged, and the stored values are kept.
+    private final double epsilon;
+
+    // Written by the writing thread in the pipelined mode, read once it's done.
+    private long numRatingDeltasWritten;
+    private long numRatingDeltasSkipped;
+    private final BulkWriter.Throughput writeThroughput = new BulkWriter.Throughput();
+
+    public RatingUpdater(SqlSessionFactory sessionFactory,
+                         SqlSession session,
+                         int checkpointInterval,
+                         double epsilon) {
+        this.sessionFactory = sessionFactory;
         this.session = session;
+        this.checkpointInterval = checkpointInterval;
+        this.epsilon = epsilon;
         playerMapper = session.getMapper(PlayerMapper.class);
         gameMapper = session.getMapper(GameMapper.class);
         entryMapper = session.getMapper(EntryMapper.class);
+        checkpointMapper = session.getMapper(CheckpointMapper.class);
         playerStates = new PlayerStateTracker();
+        judgePool = new ForkJoinPool();
+        scheduler = new WaveScheduler(judgePool);
     }
 
-    public void recalcRatings(int fromGameId) {
-        updateRatingDeltas(fromGameId);
+    public void recalcRatings(int fromGameId, RejudgeMode mode) {
+        prepareCheckpoints(fromGameId);
+        try {
+            switch (mode) {
+                case WINDOWED: updateRatingDeltas(fromGameId); break;
+                case IN_MEMORY: updateRatingDeltasInMemory(fromGameId); break;
+                case PIPELINED: updateRatingDeltasPipelined(fromGameId); break;
+                default: throw new AssertionError("Unknown rejudge mode.");
+            }
+        } finally {
+            judgePool.shutdown();
+        }
+        logger.info("Rating deltas written: {}, skipped (unchanged): {}",
+                    numRatingDeltasWritten,
+                    numRatingDeltasSkipped);
         updatePlayerRatingAndPositions();
     }
 
     private void updateRatingDeltas(int fromGameId) {
-        int batchSize = 1000;
+        int batchSize = WINDOW_SIZE;
         int maxGameId = gameMapper.getMaxGameId();
         Progress progress = new Progress(logger,
                                          "Recalculating rating deltas...",
                                          maxGameId - fromGameId);
+        Progress writeProgress = new Progress(logger,
+                                              "Writing rating deltas...",
+                                              maxGameId - fromGameId).logAtInfo();
         progress.setProgress(0);
+        int startGameId = fromGameId;
         while (fromGameId <= maxGameId) {
-            int toGameId = fromGameId + batchSize;
-            recalcRatingsForGameIdRange(fromGameId, toGameId);
-            progress.incProgress(batchSize);
+            int toGameId = getWindowEnd(fromGameId, batchSize);
+            double parallelism = recalcRatingsForGameIdRange(fromGameId, toGameId);
+            if (isCheckpointBoundary(toGameId + 1)) {
+                writeCheckpoint(session, playerStates.checkpoint(toGameId + 1));
+            }
+            progress.setProgress(toGameId - startGameId, formatParallelism(parallelism));
+            writeProgress.setProgress(toGameId - startGameId, writeThroughput.format());
             fromGameId = toGameId + 1; // +1 since SQL BETWEEN is inclusive
         }
     }
 
     /**
      * Update rating deltas in entries for all games between fromGameId (inclusive) to
-     * toGameId (inclusive).
+     * toGameId (inclusive). Returns the parallelism factor achieved when judging the games.
      */
-    private void recalcRatingsForGameIdRange(int fromGameId,
+    private double recalcRatingsForGameIdRange(int fromGameId,
                                              int toGameId) {
-        List<Entry> entries = entryMapper.getEntriesForGames(fromGameId, toGameId);
-
-        // Make sure map is sorted so that games are judged according to game id order.
-        SortedMap<Integer, List<Entry>> byGameId = entries.stream()
-                .collect(groupingBy(Entry::getGameId, TreeMap::new, toList()));
+        EntryColumns entries = new EntryColumns(entryMapper.getEntriesForGames(fromGameId, toGameId));
 
         // Make sure states of participants are loaded and readily available as input for Elo
         // computations.
-        ensurePlayerStatesLoaded(fromGameId, getPlayerIdsFromEntries(entries));
+        ensurePlayerStatesLoaded(fromGameId, entries);
 
-        for (List<Entry> gameEntries : byGameId.values()) {
-            recomputeRatingDeltaFields(playerStates, gameEntries);
-            gameEntries.forEach(entryMapper::updateEntry);
-        }
+        double parallelism = replayGames(entries, 0, entries.size());
+        writeRatingDeltas(session, entries);
 
         // It is "safe" to commit the new rating deltas. Players ratings may not sum up to their
         // rating deltas, but the entry rating deltas are now more accurate.
         // (Right now I don't know if there's any *point* in doing this, but maybe the DBMS
         // needs to hold uncommitted changes in memory?)
         session.commit();
+        return parallelism;
     }
 
-    private void updatePlayerRatingAndPositions() {
-        // 1. Update ratings (so we can figure out and update rating_pos without loading all
-        //    player ids into memory).
-        logger.info("Updating player ratings...");
+    /**
+     * Same result as {@link #updateRatingDeltas(int)}, but all entries from fromGameId and
+     * onwards are read in one go and kept in memory. This avoids one query per window (and per
+     * window of player states) at the cost of ~50 bytes of heap per entry.
+     */
+    private void updateRatingDeltasInMemory(int fromGameId) {
+        EntryColumns entries = loadEntries(fromGameId);
+
+        // Players that have played games before fromGameId start off from where they were.
+        if (fromGameId > 0) {
+            ensurePlayerStatesLoaded(fromGameId, entries);
+        }
+
+        Progress progress = new Progress(logger, "Replaying games in memory...", entries.size());
+        for (int from = 0, to; from < entries.size(); from = to) {
+            // Chunks end at checkpoint boundaries
+            int checkpointGameId = getNextCheckpointBoundary(entries.getGameId(from));
+            to = entries.getGameEnd(Math.min(from + CHUNK_SIZE, entries.size()) - 1);
+            to = entries.indexOfFirstGameFrom(checkpointGameId, from, to);
+            double parallelism = replayGames(entries, from, to);
+            if (to < entries.size() && entries.getGameId(to) >= checkpointGameId) {
+                writeCheckpoint(session, playerStates.checkpoint(checkpointGameId));
+            }
+            progress.setProgress(to, formatParallelism(parallelism));
+        }
+
+        writeChangedRatingDeltas(entries);
+    }
+
+    /**
+     * Same result as {@link #updateRatingDeltas(int)}, but loading and writing of windows is done
+     * in separate threads (on separate connections) so that the next window is loaded and the
+     * previous one is written while the current one is judged. Windows are still judged one at a
+     * time, in game id order, by the calling thread.
+     */
+    private void updateRatingDeltasPipelined(int fromGameId) {
+        int maxGameId = gameMapper.getMaxGameId();
         Progress progress = new Progress(logger,
-                                         "Updating player ratings...",
-                                         playerStates.getTrackedPlayerIds().size());
-        for (List<Integer> playerIdsPage : getPages(playerStates.getTrackedPlayerIds(), 1000)) {
-            for (int id : playerIdsPage) {
-                playerMapper.updateRating(id, playerStates.getRating(id));
+                                         "Recalculating rating deltas (pipelined)...",
+                                         maxGameId - fromGameId);
+
+        // Bounded queues so that a slow stage holds back the stage before it.
+        BlockingQueue<Window> loaded = new ArrayBlockingQueue<>(2);
+        BlockingQueue<Window> judged = new ArrayBlockingQueue<>(2);
+
+        ExecutorService stages = Executors.newFixedThreadPool(2, r -> new Thread(r, "rejudge-pipeline"));
+        try {
+            Future<?> reading = stages.submit(() -> loadWindows(fromGameId, maxGameId, loaded));
+            Future<?> writing = stages.submit(() -> writeWindows(fromGameId, maxGameId, judged));
+
+            Window window;
+            while ((window = loaded.take()) != Window.END) {
+                window.playerStates.forEach(playerStates::initialize);
+                window.newPlayerIds.forEach(playerStates::initialize);
+                double parallelism = replayGames(window.entries, 0, window.entries.size());
+                if (isCheckpointBoundary(window.toGameId + 1)) {
+                    window.checkpoint = playerStates.checkpoint(window.toGameId + 1);
+                }
+                put(judged, window, writing);
+                progress.setProgress(window.toGameId - fromGameId,
+                                     formatParallelism(parallelism),
+                                     "prefetched: " + loaded.size(),
+                                     "unwritten: " + judged.size());
+            }
+            put(judged, Window.END, writing);
+
+            reading.get();
+            writing.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new StorageException(e);
+        } finally {
+            stages.shutdownNow();
+        }
+    }
+
+    // Reader stage
+    private Void loadWindows(int fromGameId, int maxGameId, BlockingQueue<Window> loaded) throws InterruptedException {
+        try (SqlSession readerSession = sessionFactory.openSession(true)) {
+            EntryMapper readerEntryMapper = readerSession.getMapper(EntryMapper.class);
+            PlayerMapper readerPlayerMapper = readerSession.getMapper(PlayerMapper.class);
+
+            // Mirrors the players tracked by the judging thread. A player seen for the first time
+            // hasn't played any games in this rejudge yet, so the state before the window is the
+            // state before fromGameId, regardless of what has been written so far.
+            BitSet seenPlayerIds = new BitSet();
+            while (fromGameId <= maxGameId) {
+                int toGameId = getWindowEnd(fromGameId, WINDOW_SIZE);
+                EntryColumns entries = new EntryColumns(readerEntryMapper.getEntriesForGames(fromGameId, toGameId));
+                List<Integer> newPlayerIds = new ArrayList<>();
+                for (int i = 0; i < entries.size(); i++) {
+                    int playerId = entries.getPlayerId(i);
+                    if (!seenPlayerIds.get(playerId)) {
+                        seenPlayerIds.set(playerId);
+                        newPlayerIds.add(playerId);
+                    }
+                }
+                List<PlayerStateTracker.PlayerState> states = new ArrayList<>();
+                for (List<Integer> playerIdsPage : getPages(newPlayerIds, 100)) {
+                    states.addAll(readerPlayerMapper.getPlayerStates(fromGameId, playerIdsPage));
+                }
+                loaded.put(new Window(toGameId, entries, states, newPlayerIds));
+                fromGameId = toGameId + 1; // +1 since SQL BETWEEN is inclusive
+            }
+        } finally {
+            loaded.put(Window.END);
+        }
+        return null;
+    }
+
+    // Writer stage
+    private Void writeWindows(int fromGameId, int maxGameId, BlockingQueue<Window> judged) throws InterruptedException {
+        Progress progress = new Progress(logger,
+                                         "Writing rating deltas (pipelined)...",
+                                         maxGameId - fromGameId).logAtInfo();
+        try (SqlSession writerSession = sessionFactory.openSession(ExecutorType.BATCH, true)) {
+            Window window;
+            while ((window = judged.take()) != Window.END) {
+                writeRatingDeltas(writerSession, window.entries);
+                if (window.checkpoint != null) {
+                    writeCheckpoint(writerSession, window.checkpoint);
+                }
+                progress.setProgress(window.toGameId - fromGameId, writeThroughput.format());
+            }
+        }
+        return null;
+    }
+
+    // Blocks until there's room in the queue, unless the consuming stage has died.
+    private static void put(BlockingQueue<Window> queue, Window window, Future<?> consumer)
+            throws InterruptedException, ExecutionException {
+        while (!queue.offer(window, 1, SECONDS)) {
+            if (consumer.isDone()) {
+                consumer.get();
+                throw new IllegalStateException("Pipeline stage ended prematurely.");
+            }
+        }
+    }
+
+    private EntryColumns loadEntries(int fromGameId) {
+        int numEntries = entryMapper.countEntriesFrom(fromGameId);
+        EntryColumns entries = new EntryColumns(numEntries);
+        Progress progress = new Progress(logger, "Loading entries into memory...", numEntries);
+
+        // Postgres only streams results within a transaction, so the cursor can't use the
+        // (autocommitting) session of this updater.
+        try (SqlSession streamingSession = sessionFactory.openSession(false);
+             Cursor<Entry> cursor = streamingSession.getMapper(EntryMapper.class)
+                                                    .streamEntriesFrom(fromGameId)) {
+            for (Entry entry : cursor) {
+                entries.add(entry);
                 progress.incProgress(1);
             }
-            session.flushStatements();
+        } catch (IOException e) {
+            throw new StorageException(e);
         }
-        // Free some memory.
-        playerStates.dispose();
+        return entries;
+    }
 
-        // 2. Update rating_pos
-        int batchSize = 50000;
-        int maxPlayerId = playerMapper.getMaxPlayerId();
-        logger.info("Updating rating positions...");
-        progress = new Progress(logger, "Updating rating positions...", maxPlayerId);
-        int id = 0;
-        while (id <= maxPlayerId) {
-            playerMapper.updateRatingPositions(id, id + batchSize);
-            progress.incProgress(batchSize);
-            id += batchSize;
-            try {
-                session.flushStatements();
-            } catch (Exception e) {
-                logger.error("Error during update of rating positions. Try with smaller batch size perhaps?", e);
+    private void writeChangedRatingDeltas(EntryColumns entries) {
+        int numChanged = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.isRatingDeltaChanged(i)) {
+                numChanged++;
+            }
+        }
+        numRatingDeltasWritten += numChanged;
+        numRatingDeltasSkipped += entries.size() - numChanged;
+
+        Progress progress = new Progress(logger, "Copying changed rating deltas...", numChanged).logAtInfo();
+        BulkWriter ratingDeltaWriter = new BulkWriter(session, ENTRY_RATING_DELTAS);
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.isRatingDeltaChanged(i)) {
+                ratingDeltaWriter.addRow(entries.getId(i), entries.getGameId(i), entries.getRatingDelta(i));
+                progress.incProgress(1);
             }
         }
+        logger.info("Applying changed rating deltas...");
+        ratingDeltaWriter.apply();
+        session.commit();
+        writeThroughput.add(ratingDeltaWriter);
+        logger.info("Changed rating deltas written ({}).", String.join(", ", writeThroughput.format()));
+    }
+
+    private void updatePlayerRatingAndPositions() {
+        logger.info("Updating player ratings and rating positions...");
+        new PositionUpdater(sessionFactory, session).updateRatingsAndPositions(playerStates, epsilon);
+        // Free some memory.
+        playerStates.dispose();
 
         // Ratings and position fields are in sync. Commit!
         session.commit();
     }
 
-    private void recomputeRatingDeltaFields(PlayerStateTracker playerStates,
-                                            List<Entry> gameEntries) {
+    /**
+     * Judge all games with entries between from (inclusive) and to (exclusive), in parallel where
+     * possible. Returns the parallelism factor (average number of games judged simultaneously).
+     */
+    private double replayGames(EntryColumns entries, int from, int to) {
+        // The tracker must not be resized while games are judged in parallel, so start tracking
+        // all players up front.
+        for (int i = from; i < to; i++) {
+            playerStates.initialize(entries.getPlayerId(i));
+        }
+        return scheduler.judgeAll(entries, from, to, (gameFrom, gameTo) ->
+                recomputeRatingDeltaFields(playerStates, entries, gameFrom, gameTo, epsilon));
+    }
+
+    /**
+     * Checkpoints at or before fromGameId are still valid since they only depend on earlier
+     * games. Later ones are rewritten during the rejudge.
+     */
+    private void prepareCheckpoints(int fromGameId) {
+        checkpointMapper.deleteCheckpointsAfter(fromGameId);
+        session.flushStatements();
+    }
+
+    private boolean isCheckpointBoundary(int gameId) {
+        return checkpointInterval > 0 && gameId % checkpointInterval == 0;
+    }
+
+    // Returns the first checkpoint boundary after the given game id.
+    private int getNextCheckpointBoundary(int gameId) {
+        if (checkpointInterval <= 0) {
+            return Integer.MAX_VALUE;
+        }
+        long next = ((long) gameId / checkpointInterval + 1) * checkpointInterval;
+        return (int) Math.min(next, Integer.MAX_VALUE);
+    }
+
+    // Windows end right before checkpoint boundaries so the states can be checkpointed in between.
+    private int getWindowEnd(int fromGameId, int windowSize) {
+        return Math.min(fromGameId + windowSize, getNextCheckpointBoundary(fromGameId) - 1);
+    }
+
+    private void writeCheckpoint(SqlSession session, PlayerStateTracker.Checkpoint checkpoint) {
+        BulkWriter checkpointWriter = new BulkWriter(session, PLAYER_CHECKPOINTS);
+        for (int i = 0; i < checkpoint.size(); i++) {
+            checkpointWriter.addRow(checkpoint.gameId,
+                                    checkpoint.getPlayerId(i),
+                                    checkpoint.getRating(i),
+                                    checkpoint.getNumGamesPlayed(i));
+        }
+        int numWritten = checkpointWriter.apply();
+        writeThroughput.add(checkpointWriter);
+        logger.debug("Checkpointed {} player states before game {}.", numWritten, checkpoint.gameId);
+    }
+
+    private static String formatParallelism(double parallelism) {
+        return String.format("parallelism: %.1f", parallelism);
+    }
+
+    // Writes the rating deltas that changed
+    private void writeRatingDeltas(SqlSession session, EntryColumns entries) {
+        BulkWriter ratingDeltaWriter = new BulkWriter(session, ENTRY_RATING_DELTAS);
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.isRatingDeltaChanged(i)) {
+                ratingDeltaWriter.addRow(entries.getId(i), entries.getGameId(i), entries.getRatingDelta(i));
+                numRatingDeltasWritten++;
+            } else {
+                numRatingDeltasSkipped++;
+            }
+        }
+        ratingDeltaWriter.apply();
+        writeThroughput.add(ratingDeltaWriter);
+    }
+
+    /**
+     * Recompute rating deltas for the entries from (inclusive) to (exclusive) of a single game.
+     * Only the states of the game's own players are touched, since games that don't share players
+     * are judged concurrently.
+     */
+    static void recomputeRatingDeltaFields(PlayerStateTracker playerStates,
+                                           EntryColumns entries,
+                                           int from,
+                                           int to,
+                                           double epsilon) {
         // Reset all deltas to 0
-        gameEntries.forEach(e -> e.setRatingDelta(0));
+        for (int i = from; i < to; i++) {
+            entries.setRatingDelta(i, 0);
+        }
 
         // Ignore game if there's only one participant
-        if (gameEntries.size() > 1/* && !game.isDeleted()*/) {
-            // Remove entries that are posted more than 90 days after game was initiated
-            List<Entry> entriesToJudge = new ArrayList<>(gameEntries);
-            entriesToJudge.removeIf(e -> !e.isPostedWithin90daysOfGamePosting());
-
-            // Prepare input for Elo calculation
-            List<EloCalculator.PlayerInfo> playerInfos = new ArrayList<>();
-            for (Entry entry : entriesToJudge) {
-                playerInfos.add(new EloCalculator.PlayerInfo(playerStates.getNumGamesPlayed(entry.getPlayerId()),
-                                               playerStates.getRating(entry.getPlayerId()),
-                                               entry.getVotes()));
+        if (to - from > 1/* && !game.isDeleted()*/) {
+            EloScratch scratch = EloScratch.get(to - from);
+
+            // Prepare input for Elo calculation. Skip entries that are posted more than 90 days
+            // after game was initiated.
+            int n = 0;
+            for (int i = from; i < to; i++) {
+                if (entries.isPostedWithin90daysOfGamePosting(i)) {
+                    int playerId = entries.getPlayerId(i);
+                    scratch.entryIndexes[n] = i;
+                    scratch.gamesPlayed[n] = playerStates.getNumGamesPlayed(playerId);
+                    scratch.ratings[n] = playerStates.getRating(playerId);
+                    scratch.scores[n] = entries.getVotes(i);
+                    n++;
+                }
             }
 
             // Elo computation / rating updates
-            double[] ratingDeltas = EloCalculator.computeRatingDeltas(playerInfos);
-            for (int i = 0; i < ratingDeltas.length; i++) {
-                entriesToJudge.get(i).setRatingDelta(ratingDeltas[i]);
+            EloCalculator.computeRatingDeltas(n, scratch.gamesPlayed, scratch.ratings, scratch.scores, scratch.deltas);
+            for (int k = 0; k < n; k++) {
+                entries.setRatingDelta(scratch.entryIndexes[k], scratch.deltas[k]);
             }
         }
 
+        // Keep stored deltas that are close enough, so that they don't need to be written back.
+        // Player states are updated with the kept values to stay in sync with the database.
+        for (int i = from; i < to; i++) {
+            entries.keepStoredRatingDeltaIfWithin(i, epsilon);
+        }
+
         // Update player states
-        for (Entry entry : gameEntries) {
-            playerStates.incGamesPlayed(entry.getPlayerId());
-            playerStates.addRatingDelta(entry.getPlayerId(), entry.getRatingDelta());
+        for (int i = from; i < to; i++) {
+            playerStates.incGamesPlayed(entries.getPlayerId(i));
+            playerStates.addRatingDelta(entries.getPlayerId(i), entries.getRatingDelta(i));
         }
     }
 
     private void ensurePlayerStatesLoaded(int beforeGameId,
-                                          Set<Integer> playerIds) {
-        Set<Integer> playerIdsToLoad = new HashSet<>(playerIds);
-        playerIdsToLoad.removeAll(playerStates.getTrackedPlayerIds());
-
+                                          EntryColumns entries) {
         // Pagination below is to limit the size of the constructed query.
-        for (List<Integer> playerIdsPage : getPages(playerIdsToLoad, 100)) {
-            for (PlayerStateTracker.PlayerState ps : playerMapper.getPlayerStates(beforeGameId, playerIdsPage)) {
-                playerStates.initialize(ps);
+        Set<Integer> playerIdsPage = new HashSet<>();
+        for (int i = 0; i < entries.size(); i++) {
+            int playerId = entries.getPlayerId(i);
+            if (!playerStates.isTracked(playerId)
+                    && playerIdsPage.add(playerId)
+                    && playerIdsPage.size() == 100) {
+                loadPlayerStates(beforeGameId, playerIdsPage);
+                playerIdsPage.clear();
             }
         }
+        if (!playerIdsPage.isEmpty()) {
+            loadPlayerStates(beforeGameId, playerIdsPage);
+        }
     }
 
-    private Set<Integer> getPlayerIdsFromEntries(List<Entry> entries) {
-        return entries.stream()
-                      .map(Entry::getPlayerId)
-                      .collect(toSet());
+    private void loadPlayerStates(int beforeGameId, Set<Integer> playerIds) {
+        for (PlayerStateTracker.PlayerState ps : playerMapper.getPlayerStates(beforeGameId, new ArrayList<>(playerIds))) {
+            playerStates.initialize(ps);
+        }
+        // Players without earlier games are not returned by the query. Track them anyway so that
+        // they aren't looked up again.
+        playerIds.forEach(playerStates::initialize);
     }
 
+    // Per thread input and output arrays of the Elo computations, grown as needed.
+    private static class EloScratch {
 
-    public static class PlayerStateTracker {
+        private final static ThreadLocal<EloScratch> scratch = ThreadLocal.withInitial(() -> new EloScratch(64));
 
-        // Mutable class representing the state of a player during a rating recalc cycle.
-        public static class PlayerState {
-            public int playerId;
-            public int numGamesPlayed;
-            public double currentRating;
+        final int[] entryIndexes;
+        final int[] gamesPlayed;
+        final double[] ratings;
+        final double[] scores;
+        final double[] deltas;
 
-            public PlayerState(int playerId, int numGamesPlayed, double currentRating) {
-                this.playerId = playerId;
-                this.numGamesPlayed = numGamesPlayed;
-                this.currentRating = currentRating;
-            }
-        }
-
-        private Map<Integer, PlayerState> playerStates = new HashMap<>();
-
-        public Set<Integer> getTrackedPlayerIds() {
-            return playerStates.keySet();
+        EloScratch(int capacity) {
+            entryIndexes = new int[capacity];
+            gamesPlayed = new int[capacity];
+            ratings = new double[capacity];
+            scores = new double[capacity];
+            deltas = new double[capacity];
         }
 
-        public double getRating(int playerId) {
-            PlayerState ps = playerStates.get(playerId);
-            return ps != null ? playerStates.get(playerId).currentRating : 1500;
+        // Returns the arrays of the current thread, with room for at least numEntries entries.
+        static EloScratch get(int numEntries) {
+            EloScratch current = scratch.get();
+            if (current.deltas.length < numEntries) {
+                current = new EloScratch(Integer.highestOneBit(numEntries) * 2);
+                scratch.set(current);
+            }
+            return current;
         }
+    }
 
-        public void incGamesPlayed(int playerId) {
-            ensureInitialized(playerId);
-            playerStates.get(playerId).numGamesPlayed++;
-        }
+    // A window of games passed between the stages of a pipelined rejudge.
+    private static class Window {
 
-        public void addRatingDelta(int playerId, double ratingDelta) {
-            ensureInitialized(playerId);
-            playerStates.get(playerId).currentRating += ratingDelta;
-        }
+        final static Window END = new Window(-1, null, null, null);
 
-        private void ensureInitialized(int playerId) {
-            playerStates.computeIfAbsent(playerId, id -> new PlayerState(id, 0, 1500));
-        }
+        final int toGameId;
+        final EntryColumns entries;
 
-        public int getNumGamesPlayed(int playerId) {
-            PlayerState ps = playerStates.get(playerId);
-            return ps != null ? playerStates.get(playerId).numGamesPlayed : 0;
-        }
+        // States (before the window) of players seen for the first time in this window.
+        final List<PlayerStateTracker.PlayerState> playerStates;
+        final List<Integer> newPlayerIds;
 
-        public void initialize(PlayerState ps) {
-            playerStates.put(ps.playerId, ps);
-        }
+        // Set by the judging thread if the window ends right before a checkpoint boundary.
+        PlayerStateTracker.Checkpoint checkpoint;
 
-        public void dispose() {
-            playerStates = null;
+        Window(int toGameId,
+               EntryColumns entries,
+               List<PlayerStateTracker.PlayerState> playerStates,
+               List<Integer> newPlayerIds) {
+            this.toGameId = toGameId;
+            this.entries = entries;
+            this.playerStates = playerStates;
+            this.newPlayerIds = newPlayerIds;
         }
     }
-
 }
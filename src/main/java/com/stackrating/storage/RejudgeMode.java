@@ -0,0 +1,13 @@
+package com.stackrating.storage;
+
+public enum RejudgeMode {
+
+    /** Load, judge and write back games in windows of 1000 game ids. */
+    WINDOWED,
+
+    /** Stream all entries into memory once, replay all games and write back what changed. */
+    IN_MEMORY,
+
+    /** Like WINDOWED, but the next window is loaded and the previous one written concurrently. */
+    PIPELINED
+}
@@ -1,20 +1,15 @@
 package com.stackrating.storage;
 
-import com.stackrating.SortingPolicy;
 import com.stackrating.db.EntryMapper;
 import com.stackrating.db.GameMapper;
 import com.stackrating.db.PlayerMapper;
-import com.stackrating.log.Progress;
 import com.stackrating.model.Entry;
 import com.stackrating.model.Game;
 import com.stackrating.model.Player;
 import com.stackrating.model.TimeDataPoint;
 import org.apache.ibatis.cursor.Cursor;
-import org.apache.ibatis.io.Resources;
 import org.apache.ibatis.session.ExecutorType;
 import org.apache.ibatis.session.SqlSession;
-import org.apache.ibatis.session.SqlSessionFactory;
-import org.apache.ibatis.session.SqlSessionFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -22,12 +17,14 @@ import java.io.Closeable;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
-import static java.util.Comparator.comparing;
 import static java.util.stream.Collectors.groupingBy;
 import static java.util.stream.Collectors.summingDouble;
 
@@ -35,31 +32,91 @@ public class Storage {
 
     private final static Logger logger = LoggerFactory.getLogger(Storage.class);
 
-    private final SqlSessionFactory sessionFactory;
+    // Max rows per multi-row statement. Postgres allows at most 32767 parameters per statement.
+    private final static int INGEST_CHUNK_SIZE = 1000;
 
-    ThreadLocal<SqlSession> session = new ThreadLocal<>();
+    // Separate pools, so that for instance a long rejudge can't starve the web requests
+    private final ConnectionPool webPool;
+    private final ConnectionPool ingestPool;
+    private final ConnectionPool rejudgePool;
+
+    private final int checkpointInterval;
+    private final double rejudgeEpsilon;
+
+    // Sessions are opened on first use, so that threads that open a session but never use it
+    // (such as most web requests) don't hold a connection.
+    private final ThreadLocal<Supplier<SqlSession>> sessionOpener = new ThreadLocal<>();
+    private final ThreadLocal<SqlSession> session = new ThreadLocal<>();
 
     public Storage() throws IOException {
-        InputStream inputStream = Resources.getResourceAsStream("mybatis-config.xml");
         Properties dbProperties = new Properties();
         dbProperties.load(new FileReader("db.properties"));
-        sessionFactory = new SqlSessionFactoryBuilder().build(inputStream, dbProperties);
+        webPool = new ConnectionPool("web", dbProperties);
+        ingestPool = new ConnectionPool("ingest", dbProperties);
+        rejudgePool = new ConnectionPool("rejudge", dbProperties);
+        checkpointInterval = Integer.parseInt(dbProperties.getProperty("rejudge.checkpointInterval", "1000000"));
+        rejudgeEpsilon = Double.parseDouble(dbProperties.getProperty("rejudge.epsilon", "1e-6"));
     }
 
+    /** Opens a session (on first use) for the content updater. Rejudging uses sessions of its own. */
     public NonThrowingCloseable openSession() {
-        session.set(sessionFactory.openSession(ExecutorType.BATCH, true));
+        sessionOpener.set(() -> ingestPool.getSessionFactory().openSession(ExecutorType.BATCH, true));
+        return this::closeSession;
+    }
+
+    /** Opens a read-only session (on first use) for serving web requests. */
+    public NonThrowingCloseable openReadOnlySession() {
+        sessionOpener.set(() -> {
+            SqlSession readOnlySession = webPool.getSessionFactory().openSession(ExecutorType.SIMPLE, true);
+            try {
+                readOnlySession.getConnection().setReadOnly(true);
+            } catch (SQLException e) {
+                readOnlySession.close();
+                throw new StorageException(e);
+            }
+            return readOnlySession;
+        });
         return this::closeSession;
     }
 
     public void closeSession() {
-        session.get().flushStatements();
-        session.get().close();
+        SqlSession openedSession = session.get();
+        if (openedSession != null) {
+            openedSession.flushStatements();
+            openedSession.close();
+        }
         session.remove();
+        sessionOpener.remove();
+    }
+
+    private SqlSession getSession() {
+        SqlSession openedSession = session.get();
+        if (openedSession == null) {
+            Supplier<SqlSession> opener = sessionOpener.get();
+            if (opener == null) {
+                throw new IllegalStateException("No session opened by this thread.");
+            }
+            openedSession = opener.get();
+            session.set(openedSession);
+        }
+        return openedSession;
     }
 
     // Convenience method
     public <T> T getMapper(Class<T> mapperClass) {
-        return session.get().getMapper(mapperClass);
+        return getSession().getMapper(mapperClass);
+    }
+
+    public List<ConnectionPool> getConnectionPools() {
+        return List.of(webPool, ingestPool, rejudgePool);
+    }
+
+    // Runs the given work in a session of its own from the rejudge pool
+    private void inRejudgeSession(Consumer<SqlSession> work) {
+        try (SqlSession rejudgeSession = rejudgePool.getSessionFactory().openSession(ExecutorType.BATCH, true)) {
+            work.accept(rejudgeSession);
+            rejudgeSession.flushStatements();
+        }
     }
 
     public int getUserCount() {
@@ -87,10 +144,13 @@ public class Storage {
 
     public List<TimeDataPoint> getRatingGraph(int userId) {
         EntryMapper entryMapper = getMapper(EntryMapper.class);
-            
+        return toRatingGraph(entryMapper.getRatingDeltas(userId));
+    }
+
+    // Turns rating deltas into absolute ratings, one data point per day.
+    static List<TimeDataPoint> toRatingGraph(List<TimeDataPoint> ratingDeltas) {
         TreeMap<Long, Double> deltaPerDay =
-                entryMapper.getRatingDeltas(userId)
-                        .stream()
+                ratingDeltas.stream()
                         .filter(tdp -> tdp.getVal() != 0)
                         .collect(groupingBy(Storage::truncateTimestamp,
                                 TreeMap::new,
@@ -114,85 +174,74 @@ public class Storage {
         return rd.getTimestamp() - rd.getTimestamp() % ChronoUnit.DAYS.getDuration().toMillis();
     }
 
-    public void rejudgeGames(int fromGameId) {
-        new RatingUpdater(session.get()).recalcRatings(fromGameId);
-    }
-
-    public void updateNameAndRep(int playerId, String displayName, int rep) {
-        getMapper(PlayerMapper.class).updateNameAndRep(playerId, displayName, rep);
+    public void rejudgeGames(int fromGameId, RejudgeMode mode) {
+        inRejudgeSession(rejudgeSession ->
+                new RatingUpdater(rejudgePool.getSessionFactory(), rejudgeSession, checkpointInterval, rejudgeEpsilon)
+                        .recalcRatings(fromGameId, mode));
     }
 
-    /** Create or update existing game. */
-    public void upsertGame(Game game) {
-        if (game.getTitle().length() > 100) {
-            game.setTitle(game.getTitle().substring(0, 100));
+    /**
+     * Writes the pending player writes of the given buffer, with one multi-row statement for the
+     * upserts and one for the updates (per chunk), and clears the buffer.
+     */
+    public void flush(PlayerWriteBuffer buffer) {
+        PlayerMapper playerMapper = getMapper(PlayerMapper.class);
+        for (List<Player> players : IngestBatch.chunks(buffer.getUpserts(), INGEST_CHUNK_SIZE)) {
+            playerMapper.upsertPlayers(players);
         }
-        GameMapper gameMapper = getMapper(GameMapper.class);
-        Game existing = gameMapper.getGame(game.getId());
-        if (existing == null) {
-            gameMapper.insertGame(game);
-        } else {
-            gameMapper.updateGame(game);
+        for (List<Player> players : IngestBatch.chunks(buffer.getUpdates(), INGEST_CHUNK_SIZE)) {
+            playerMapper.updateNamesAndReps(players);
         }
+        buffer.clear();
     }
 
-    /** Create or update existing player. */
-    public void upsertUser(Player player) {
-        if (player.getDisplayName().length() > 40) {
-            player.setDisplayName(player.getDisplayName().substring(0, 40));
+    /**
+     * Creates or updates the games and entries of the given batch, with one multi-row statement per
+     * kind (and chunk). Existing games get a new title and last visit, and existing entries new
+     * votes. The players of the entries should be written first, see
+     * {@link #flush(PlayerWriteBuffer)}.
+     *
+     * @return ids of the games with new entries or entries whose votes changed
+     */
+    public Set<Integer> ingest(IngestBatch batch) {
+        for (Game game : batch.getGames()) {
+            if (game.getTitle().length() > 100) {
+                game.setTitle(game.getTitle().substring(0, 100));
+            }
         }
-        PlayerMapper playerMapper = getMapper(PlayerMapper.class);
-        Player existing = playerMapper.getPlayer(player.getId());
-        if (existing == null) {
-            playerMapper.insertPlayer(player);
-        } else {
-            playerMapper.updatePlayer(player);
+        for (List<Game> games : IngestBatch.chunks(batch.getGames(), INGEST_CHUNK_SIZE)) {
+            getMapper(GameMapper.class).upsertGames(games);
+        }
+        // Queries flush the batched statements above first, so entries are written last.
+        Set<Integer> changedGameIds = new HashSet<>();
+        for (List<Entry> entries : IngestBatch.chunks(batch.getEntries(), INGEST_CHUNK_SIZE)) {
+            changedGameIds.addAll(getMapper(EntryMapper.class).upsertEntries(entries));
         }
+        return changedGameIds;
     }
 
-    /** Create or update existing entry. */
-    public void upsertEntry(Entry entry) {
-        EntryMapper entryMapper = getMapper(EntryMapper.class);
-        Entry existing = entryMapper.getEntry(entry.getId(), entry.getGameId());
-        if (existing == null) {
-            entryMapper.insertEntry(entry);
-        } else {
-            entryMapper.updateEntry(entry);
+    /** Passes all players to the given consumer in id order, without loading them all up front. */
+    public void forEachPlayer(Consumer<Player> consumer) {
+        // Postgres only streams results within a transaction (see RatingUpdater.loadEntries).
+        try (SqlSession streamingSession = ingestPool.getSessionFactory().openSession(false);
+             Cursor<Player> players = streamingSession.getMapper(PlayerMapper.class).getAllPlayers()) {
+            players.forEach(consumer);
+        } catch (IOException e) {
+            throw new StorageException(e);
         }
     }
-
-    public Entry getEntry(int id, int gameId) {
-        return getMapper(EntryMapper.class).getEntry(id, gameId);
+    
+    public void updateRepPositions() {
+        inRejudgeSession(rejudgeSession ->
+                new PositionUpdater(rejudgePool.getSessionFactory(), rejudgeSession).updateRepPositions());
     }
 
-    public Cursor<Integer> getAllPlayerIds(SortingPolicy sortingPolicy) {
-        String orderBy = sortingPolicy == SortingPolicy.BY_RATING ? "rating" : "rep";
-        return getMapper(PlayerMapper.class).getAllPlayerIds(orderBy);
+    public int countGamesFrom(int fromGameId) {
+        return getMapper(GameMapper.class).countGamesFrom(fromGameId);
     }
 
-    public List<Player> getUsersByIds(List<Integer> ids) {
-        List<Player> players = getMapper(PlayerMapper.class).getPlayers(ids);
-        // Make sure they are sorted according to ids parameter.
-        players.sort(comparing(player -> ids.indexOf(player.getId())));
-        return players;
-    }
-    
-    public void updateRepPositions() {
-        PlayerMapper playerMapper = getMapper(PlayerMapper.class);
-        int batchSize = 50000;
-        int maxPlayerId = playerMapper.getMaxPlayerId();
-        Progress progress = new Progress(logger, "Updating rep positions...", maxPlayerId);
-        int id = 0;
-        while (id <= maxPlayerId) {
-            playerMapper.updateRepPositions(id, id + batchSize);
-            progress.incProgress(batchSize);
-            id += batchSize; // +1 since SQL BETWEEN condition is inclusive.
-            try {
-                session.get().flushStatements();
-            } catch (Exception e) {
-                logger.error("Error flushing statements.", e);
-            }
-        }
+    public int getMaxGameId() {
+        return getMapper(GameMapper.class).getMaxGameId();
     }
 
     public int getCycleStartGameId() {
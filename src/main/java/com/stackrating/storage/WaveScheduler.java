@@ -0,0 +1,143 @@
+package com.stackrating.storage;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Judges a range of games in parallel with the same result as judging them one by one in game id
+ * order.
+ *
+ * The games are grouped into waves such that no two games in the same wave share a player, and
+ * such that each player's games end up in waves in the same order as their game ids. The games of
+ * a wave are then judged in parallel, one wave at a time. Since judging a game only reads and
+ * writes the states of its own players, every player sees exactly the same sequence of updates
+ * as in the sequential case.
+ */
+class WaveScheduler {
+
+    // Number of games judged sequentially per fork join task.
+    private final static int GAMES_PER_TASK = 16;
+
+    interface GameJudge {
+        /** Judge the game with entries from (inclusive) to (exclusive). */
+        void judge(int from, int to);
+    }
+
+    private final ForkJoinPool pool;
+
+    WaveScheduler(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Judges all games with entries between from (inclusive) and to (exclusive). The range must
+     * start and end at game boundaries. Returns the parallelism factor, i.e. the average number of
+     * games per wave.
+     */
+    double judgeAll(EntryColumns entries, int from, int to, GameJudge judge) {
+        int numEntries = to - from;
+        if (numEntries == 0) {
+            return 1;
+        }
+
+        // Entry range of each game
+        int[] gameStarts = new int[numEntries + 1];
+        int numGames = 0;
+        for (int i = from; i < to; i = entries.getGameEnd(i)) {
+            gameStarts[numGames++] = i;
+        }
+        gameStarts[numGames] = to;
+
+        int[] gameOfEntry = new int[numEntries];
+        for (int g = 0; g < numGames; g++) {
+            Arrays.fill(gameOfEntry, gameStarts[g] - from, gameStarts[g + 1] - from, g);
+        }
+
+        // Find the previous game of the same player for each entry, by sorting the entries on
+        // (player id, entry index).
+        long[] playerEntries = new long[numEntries];
+        for (int i = 0; i < numEntries; i++) {
+            playerEntries[i] = ((long) entries.getPlayerId(from + i) << 32) | i;
+        }
+        Arrays.sort(playerEntries);
+        int[] prevGameOfEntry = new int[numEntries];
+        prevGameOfEntry[(int) playerEntries[0]] = -1;
+        for (int k = 1; k < numEntries; k++) {
+            boolean samePlayer = (playerEntries[k] >> 32) == (playerEntries[k - 1] >> 32);
+            prevGameOfEntry[(int) playerEntries[k]] = samePlayer ? gameOfEntry[(int) playerEntries[k - 1]] : -1;
+        }
+
+        // Put each game in the earliest wave after the waves of its players' previous games.
+        int[] waveOfGame = new int[numGames];
+        int numWaves = 0;
+        for (int g = 0; g < numGames; g++) {
+            int wave = 0;
+            for (int i = gameStarts[g] - from; i < gameStarts[g + 1] - from; i++) {
+                int prevGame = prevGameOfEntry[i];
+                if (prevGame != -1 && prevGame != g) {
+                    wave = Math.max(wave, waveOfGame[prevGame] + 1);
+                }
+            }
+            waveOfGame[g] = wave;
+            numWaves = Math.max(numWaves, wave + 1);
+        }
+
+        // Order games by wave (and by game id within each wave)
+        int[] waveStarts = new int[numWaves + 1];
+        for (int g = 0; g < numGames; g++) {
+            waveStarts[waveOfGame[g] + 1]++;
+        }
+        for (int w = 0; w < numWaves; w++) {
+            waveStarts[w + 1] += waveStarts[w];
+        }
+        int[] gamesByWave = new int[numGames];
+        int[] next = Arrays.copyOf(waveStarts, numWaves);
+        for (int g = 0; g < numGames; g++) {
+            gamesByWave[next[waveOfGame[g]]++] = g;
+        }
+
+        for (int w = 0; w < numWaves; w++) {
+            WaveTask wave = new WaveTask(gameStarts, gamesByWave, waveStarts[w], waveStarts[w + 1], judge);
+            if (waveStarts[w + 1] - waveStarts[w] <= GAMES_PER_TASK) {
+                wave.compute();
+            } else {
+                pool.invoke(wave);
+            }
+        }
+
+        return (double) numGames / numWaves;
+    }
+
+    private static class WaveTask extends RecursiveAction {
+
+        private final static long serialVersionUID = 1L;
+
+        final int[] gameStarts;
+        final int[] games;
+        final int from;
+        final int to;
+        final GameJudge judge;
+
+        WaveTask(int[] gameStarts, int[] games, int from, int to, GameJudge judge) {
+            this.gameStarts = gameStarts;
+            this.games = games;
+            this.from = from;
+            this.to = to;
+            this.judge = judge;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= GAMES_PER_TASK) {
+                for (int k = from; k < to; k++) {
+                    judge.judge(gameStarts[games[k]], gameStarts[games[k] + 1]);
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new WaveTask(gameStarts, games, from, mid, judge),
+                          new WaveTask(gameStarts, games, mid, to, judge));
+            }
+        }
+    }
+}
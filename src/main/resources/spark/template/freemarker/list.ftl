@@ -12,13 +12,18 @@
         <div style="float: right;">
             <form method="GET">
                 <input type="hidden" name="page" value="${currentPage}" />
-                User ID (<a href="http://meta.stackexchange.com/questions/98771/what-is-my-user-id">?</a>): <input type="text" name="userId" size="7" />
+                User ID (<a href="http://meta.stackexchange.com/questions/98771/what-is-my-user-id">?</a>) or name: <input type="text" name="userId" size="12" />
                 <input type="submit" value="find" />
                 <#if userNotFound>
                     <span style="color: red">User not found</span>
                 </#if>
-                <#if useNumericId>
-                    <span style="color: red">Use <a style="color: red; text-decoration: underline" href="http://meta.stackexchange.com/questions/98771/what-is-my-user-id">numeric id</a></span>
+                <#if nameMatches?has_content>
+                    <div class="secondary">
+                        Matches:
+                        <#list nameMatches as match>
+                            <a href="?userId=${match.id?c}">${match.displayName}</a><#sep>, </#sep>
+                        </#list>
+                    </div>
                 </#if>
             </form>
         </div>